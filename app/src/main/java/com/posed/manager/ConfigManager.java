@@ -29,6 +29,7 @@ import android.util.Log;
 
 import com.posed.lspd.ILSPManagerService;
 import com.posed.lspd.models.Application;
+import com.posed.lspd.models.SlowCallback;
 import com.posed.lspd.models.UserInfo;
 import com.posed.manager.adapters.ScopeAdapter;
 import com.posed.manager.receivers.LSPManagerServiceHolder;
@@ -365,4 +366,32 @@ public class ConfigManager {
             return ILSPManagerService.DEX2OAT_CRASHED;
         }
     }
+
+    public static long getCallbackBudget() {
+        try {
+            return LSPManagerServiceHolder.getService().getCallbackBudget();
+        } catch (RemoteException e) {
+            Log.e(App.TAG, Log.getStackTraceString(e));
+            return 0;
+        }
+    }
+
+    public static boolean setCallbackBudget(long millis) {
+        try {
+            LSPManagerServiceHolder.getService().setCallbackBudget(millis);
+            return true;
+        } catch (RemoteException e) {
+            Log.e(App.TAG, Log.getStackTraceString(e));
+            return false;
+        }
+    }
+
+    public static List<SlowCallback> getSlowCallbacks() {
+        try {
+            return LSPManagerServiceHolder.getService().getSlowCallbacks();
+        } catch (RemoteException e) {
+            Log.e(App.TAG, Log.getStackTraceString(e));
+            return new ArrayList<>();
+        }
+    }
 }
@@ -52,6 +52,7 @@ import com.google.android.material.checkbox.MaterialCheckBox;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
 import com.google.android.material.tabs.TabLayout;
 import com.google.android.material.tabs.TabLayoutMediator;
+import com.posed.lspd.models.SlowCallback;
 import com.posed.lspd.models.UserInfo;
 import com.posed.manager.App;
 import com.posed.manager.ConfigManager;
@@ -68,8 +69,10 @@ import com.posed.manager.util.ModuleUtil;
 
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.function.Consumer;
 import java.util.stream.IntStream;
 
@@ -482,6 +485,8 @@ public class ModulesFragment extends BaseFragment implements ModuleUtil.ModuleLi
     class ModuleAdapter extends EmptyStateRecyclerView.EmptyStateAdapter<ModuleAdapter.ViewHolder> implements Filterable {
         private List<ModuleUtil.InstalledModule> searchList = new ArrayList<>();
         private List<ModuleUtil.InstalledModule> showList = new ArrayList<>();
+        // module -> its slowest callback reported for this user
+        private Map<String, SlowCallback> slowCallbacks = new HashMap<>();
         private final UserInfo user;
         private final boolean isPick;
         private boolean isLoaded;
@@ -553,6 +558,9 @@ public class ModulesFragment extends BaseFragment implements ModuleUtil.ModuleLi
                 warningText = String.format(getString(R.string.warning_min_version_too_low), item.minVersion, ModuleUtil.MIN_MODULE_VERSION);
             } else if (item.isInstalledOnExternalStorage()) {
                 warningText = getString(R.string.warning_installed_on_external_storage);
+            } else if (slowCallbacks.containsKey(item.packageName)) {
+                var slow = slowCallbacks.get(item.packageName);
+                warningText = getString(R.string.warning_slow_callback, slow.durationMillis, slow.callback, slow.processName);
             }
             if (warningText != null) {
                 sb.append(warningText);
@@ -711,7 +719,16 @@ public class ModulesFragment extends BaseFragment implements ModuleUtil.ModuleLi
                             }
                         }
                     });
+            var tmpSlowCallbacks = new HashMap<String, SlowCallback>();
+            if (!isPick()) {
+                for (var slow : ConfigManager.getSlowCallbacks()) {
+                    if (slow.userId != getUser().id) continue;
+                    tmpSlowCallbacks.merge(slow.modulePackageName, slow,
+                            (a, b) -> a.durationMillis >= b.durationMillis ? a : b);
+                }
+            }
             String queryStr = searchView != null ? searchView.getQuery().toString() : "";
+            slowCallbacks = tmpSlowCallbacks;
             searchList = tmpList;
             runOnUiThread(() -> getFilter().filter(queryStr));
         };
@@ -161,6 +161,16 @@ public class SettingsFragment extends BaseFragment {
                 });
             }
 
+            SimpleMenuPreference prefCallbackBudget = findPreference("callback_budget");
+            if (prefCallbackBudget != null) {
+                prefCallbackBudget.setEnabled(installed);
+                if (installed) {
+                    prefCallbackBudget.setValue(String.valueOf(ConfigManager.getCallbackBudget()));
+                }
+                prefCallbackBudget.setOnPreferenceChangeListener((preference, newValue) ->
+                        ConfigManager.setCallbackBudget(Long.parseLong((String) newValue)));
+            }
+
             MaterialSwitchPreference prefEnableShortcut = findPreference("enable_auto_add_shortcut");
             if (prefEnableShortcut != null) {
                 prefEnableShortcut.setEnabled(installed);
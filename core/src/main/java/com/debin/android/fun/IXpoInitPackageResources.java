@@ -29,6 +29,10 @@ public interface IXpoInitPackageResources extends IXpoMod {
             this.instance = instance;
         }
         @Override
+        public Class<?> getOwnerClass() {
+            return instance.getClass();
+        }
+        @Override
         public void handleInitPackageResources(InitPackageResourcesParam resparam) throws Throwable {
             instance.handleInitPackageResources(resparam);
         }
@@ -29,6 +29,10 @@ public interface IXpoLoadPackage extends IXpoMod {
             this.instance = instance;
         }
         @Override
+        public Class<?> getOwnerClass() {
+            return instance.getClass();
+        }
+        @Override
         public void handleLoadPackage(LoadPackageParam lpparam) throws Throwable {
             instance.handleLoadPackage(lpparam);
         }
@@ -3,10 +3,15 @@ package com.debin.android.fun;
 import static com.posed.lspd.core.ApplicationServiceClient.serviceClient;
 import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.os.Process;
 import android.os.RemoteException;
+import android.os.UserHandle;
 
 import androidx.annotation.Nullable;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
@@ -18,18 +23,37 @@ import io.github.xposed.xposedservice.IXRemotePreferenceCallback;
 @SuppressWarnings("unchecked")
 public class XRemotePreference implements SharedPreferences {
 
-    private Map<String, Object> mMap = new ConcurrentHashMap<>();
+    /**
+     * The group read by the constructors without a group.
+     */
+    public static final String DEFAULT_GROUP = "default";
+
+    private volatile Map<String, Object> mMap = new ConcurrentHashMap<>();
+
+    private final String mPackageName;
+    private final int mUserId;
+    private final String mGroup;
 
     private static final Object CONTENT = new Object();
     final WeakHashMap<OnSharedPreferenceChangeListener, Object> mListeners = new WeakHashMap<>();
 
+    // "map" replaces all values, "diff" lists the changed keys and "put" their new values,
+    // a changed key without new value was removed
     IXRemotePreferenceCallback callback = new IXRemotePreferenceCallback.Stub() {
         @Override
         synchronized public void onUpdate(Bundle bundle) {
+            if (bundle == null) return;
             if (bundle.containsKey("map"))
-                mMap = (ConcurrentHashMap<String, Object>) bundle.getSerializable("map");
+                mMap = new ConcurrentHashMap<>((Map<String, Object>) bundle.getSerializable("map"));
             if (bundle.containsKey("diff")) {
-                for (var key : bundle.getStringArrayList("diff")) {
+                var diff = bundle.getStringArrayList("diff");
+                var put = (Map<String, Object>) bundle.getSerializable("put");
+                for (var key : diff) {
+                    var value = put == null ? null : put.get(key);
+                    if (value != null) mMap.put(key, value);
+                    else mMap.remove(key);
+                }
+                for (var key : diff) {
                     synchronized (mListeners) {
                         mListeners.forEach((listener, __) -> {
                             listener.onSharedPreferenceChanged(XRemotePreference.this, key);
@@ -41,18 +65,37 @@ public class XRemotePreference implements SharedPreferences {
     };
 
     public XRemotePreference(String packageName) {
-        this(packageName, 0);
+        this(packageName, myUserId());
     }
 
     public XRemotePreference(String packageName, int userId) {
-        try {
-            Bundle output = serviceClient.requestRemotePreference(packageName, userId, callback.asBinder());
-            callback.onUpdate(output);
-        } catch (RemoteException e) {
-            XpoBridge.log(e);
+        this(packageName, userId, DEFAULT_GROUP);
+    }
+
+    public XRemotePreference(String packageName, String group) {
+        this(packageName, myUserId(), group);
+    }
+
+    public XRemotePreference(String packageName, int userId, String group) {
+        mPackageName = packageName;
+        mUserId = userId;
+        mGroup = group;
+        // changes pushed meanwhile wait for the initial values
+        synchronized (callback) {
+            try {
+                Bundle output = serviceClient.requestRemotePreference(packageName, userId, group, callback.asBinder());
+                callback.onUpdate(output);
+            } catch (RemoteException e) {
+                XpoBridge.log(e);
+            }
         }
     }
 
+    // the daemon only serves the user of the calling process
+    private static int myUserId() {
+        return Process.myUid() / UserHandle.PER_USER_RANGE;
+    }
+
     @Override
     public Map<String, ?> getAll() {
         return new TreeMap<>(mMap);
@@ -107,9 +150,13 @@ public class XRemotePreference implements SharedPreferences {
         return mMap.containsKey(key);
     }
 
+    /**
+     * Only the module itself can write its preferences. A commit is pushed to every process
+     * reading the same group, including this one, which then calls the listeners.
+     */
     @Override
     public Editor edit() {
-        throw new UnsupportedOperationException("Read only implementation");
+        return new RemoteEditor();
     }
 
     @Override
@@ -126,4 +173,116 @@ public class XRemotePreference implements SharedPreferences {
         }
 
     }
+
+    private final class RemoteEditor implements Editor {
+        // a key mapped to null is removed
+        private final Map<String, Object> mChanges = new HashMap<>();
+        private boolean mClear = false;
+
+        @Override
+        public Editor putString(String key, @Nullable String value) {
+            synchronized (this) {
+                mChanges.put(key, value);
+            }
+            return this;
+        }
+
+        @Override
+        public Editor putStringSet(String key, @Nullable Set<String> values) {
+            synchronized (this) {
+                mChanges.put(key, values == null ? null : new HashSet<>(values));
+            }
+            return this;
+        }
+
+        @Override
+        public Editor putInt(String key, int value) {
+            synchronized (this) {
+                mChanges.put(key, value);
+            }
+            return this;
+        }
+
+        @Override
+        public Editor putLong(String key, long value) {
+            synchronized (this) {
+                mChanges.put(key, value);
+            }
+            return this;
+        }
+
+        @Override
+        public Editor putFloat(String key, float value) {
+            synchronized (this) {
+                mChanges.put(key, value);
+            }
+            return this;
+        }
+
+        @Override
+        public Editor putBoolean(String key, boolean value) {
+            synchronized (this) {
+                mChanges.put(key, value);
+            }
+            return this;
+        }
+
+        @Override
+        public Editor remove(String key) {
+            synchronized (this) {
+                mChanges.put(key, null);
+            }
+            return this;
+        }
+
+        @Override
+        public Editor clear() {
+            synchronized (this) {
+                mClear = true;
+            }
+            return this;
+        }
+
+        // all changes are written in one transaction of the daemon
+        @Override
+        public boolean commit() {
+            var diff = new ArrayList<String>();
+            var put = new HashMap<String, Object>();
+            synchronized (this) {
+                if (mClear) {
+                    for (var key : mMap.keySet()) {
+                        if (!mChanges.containsKey(key)) diff.add(key);
+                    }
+                }
+                mChanges.forEach((key, value) -> {
+                    diff.add(key);
+                    if (value != null) put.put(key, value);
+                });
+                mChanges.clear();
+                mClear = false;
+            }
+            if (diff.isEmpty()) return true;
+            var bundle = new Bundle();
+            bundle.putStringArrayList("diff", diff);
+            bundle.putSerializable("put", put);
+            // commits of this process reach mMap in the order the daemon applied them
+            synchronized (callback) {
+                if (serviceClient == null || !serviceClient.updateRemotePreference(mPackageName, mUserId, mGroup, bundle))
+                    return false;
+                // readable right away, the listeners are called once the push arrives
+                for (var key : diff) {
+                    var value = put.get(key);
+                    if (value != null) mMap.put(key, value);
+                    else mMap.remove(key);
+                }
+            }
+            return true;
+        }
+
+        // the binder call is short, there is no disk write to defer
+        @Override
+        public void apply() {
+            commit();
+        }
+    }
 }
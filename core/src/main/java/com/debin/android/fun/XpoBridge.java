@@ -27,6 +27,7 @@ import android.util.Log;
 
 import com.debin.android.fun.callbacks.XC_InitPackageResources;
 import com.debin.android.fun.callbacks.XC_LoadPackage;
+import com.debin.android.fun.callbacks.XCallback;
 
 import com.posed.lspd.core.BuildConfig;
 import com.posed.lspd.nativebridge.HookBridge;
@@ -39,8 +40,11 @@ import java.lang.reflect.Member;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.lang.reflect.Proxy;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
 
@@ -338,42 +342,125 @@ public final class XpoBridge {
     }
 
     /**
+     * A copy-on-write set of callbacks ordered by descending {@link XCallback#priority}. Callbacks
+     * with the same priority keep their insertion order. Membership is based on identity.
+     *
      * @hide
      */
-    public static final class CopyOnWriteSortedSet<E> {
+    public static final class CopyOnWriteSortedSet<E extends XCallback> {
         private transient volatile Object[] elements = EMPTY_ARRAY;
+        // insertion sequence of every element, orders the elements of the same priority
+        private final IdentityHashMap<Object, Long> sequences = new IdentityHashMap<>();
+        private long nextSequence = 0;
 
         @SuppressWarnings("UnusedReturnValue")
         public synchronized boolean add(E e) {
-            int index = indexOf(e);
-            if (index >= 0)
+            var snapshot = elements;
+            if (sequences.containsKey(e))
                 return false;
 
-            Object[] newElements = new Object[elements.length + 1];
-            System.arraycopy(elements, 0, newElements, 0, elements.length);
-            newElements[elements.length] = e;
-            Arrays.sort(newElements);
+            // e gets the highest sequence, so it goes after all elements of its priority
+            int index = insertionPoint(snapshot, e.priority);
+            Object[] newElements = new Object[snapshot.length + 1];
+            System.arraycopy(snapshot, 0, newElements, 0, index);
+            newElements[index] = e;
+            System.arraycopy(snapshot, index, newElements, index + 1, snapshot.length - index);
+            sequences.put(e, nextSequence++);
             elements = newElements;
             return true;
         }
 
+        /**
+         * Adds all given callbacks with a single copy of the backing array.
+         *
+         * @return the number of callbacks that were not yet part of this set.
+         */
+        @SuppressWarnings("UnusedReturnValue")
+        public synchronized int addAll(Collection<? extends E> c) {
+            var snapshot = elements;
+            var added = new ArrayList<E>(c.size());
+            for (E e : c) {
+                if (sequences.containsKey(e))
+                    continue;
+                sequences.put(e, nextSequence++);
+                added.add(e);
+            }
+            if (added.isEmpty())
+                return 0;
+
+            // stable sort keeps the insertion order of equal priorities, and every added element
+            // has a higher sequence than the existing ones of its priority
+            added.sort((a, b) -> Integer.compare(b.priority, a.priority));
+            Object[] newElements = new Object[snapshot.length + added.size()];
+            int i = 0, j = 0, k = 0;
+            while (i < snapshot.length && j < added.size()) {
+                if (((XCallback) snapshot[i]).priority >= added.get(j).priority)
+                    newElements[k++] = snapshot[i++];
+                else
+                    newElements[k++] = added.get(j++);
+            }
+            while (i < snapshot.length)
+                newElements[k++] = snapshot[i++];
+            while (j < added.size())
+                newElements[k++] = added.get(j++);
+            elements = newElements;
+            return added.size();
+        }
+
         @SuppressWarnings("UnusedReturnValue")
         public synchronized boolean remove(E e) {
-            int index = indexOf(e);
+            var snapshot = elements;
+            int index = indexOf(snapshot, e);
             if (index == -1)
                 return false;
 
-            Object[] newElements = new Object[elements.length - 1];
-            System.arraycopy(elements, 0, newElements, 0, index);
-            System.arraycopy(elements, index + 1, newElements, index, elements.length - index - 1);
+            Object[] newElements = new Object[snapshot.length - 1];
+            System.arraycopy(snapshot, 0, newElements, 0, index);
+            System.arraycopy(snapshot, index + 1, newElements, index, snapshot.length - index - 1);
+            sequences.remove(e);
             elements = newElements;
             return true;
         }
 
-        private int indexOf(Object o) {
-            for (int i = 0; i < elements.length; i++) {
-                if (o.equals(elements[i]))
-                    return i;
+        public synchronized boolean contains(E e) {
+            return sequences.containsKey(e);
+        }
+
+        public int size() {
+            return elements.length;
+        }
+
+        /**
+         * Returns the index right after the last element whose priority is not lower than
+         * {@code priority}.
+         */
+        private static int insertionPoint(Object[] a, int priority) {
+            int low = 0, high = a.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (((XCallback) a[mid]).priority >= priority)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            return low;
+        }
+
+        // binary search on (descending priority, ascending sequence), must hold the lock
+        private int indexOf(Object[] a, XCallback o) {
+            var sequence = sequences.get(o);
+            if (sequence == null)
+                return -1;
+            int low = 0, high = a.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                var e = (XCallback) a[mid];
+                if (e == o)
+                    return mid;
+                if (e.priority > o.priority || e.priority == o.priority && sequences.get(e) < sequence)
+                    low = mid + 1;
+                else
+                    high = mid - 1;
             }
             return -1;
         }
@@ -388,6 +475,7 @@ public final class XpoBridge {
         }
 
         public synchronized void clear() {
+            sequences.clear();
             elements = EMPTY_ARRAY;
         }
     }
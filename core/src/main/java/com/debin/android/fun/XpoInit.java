@@ -42,16 +42,19 @@ import com.posed.lspd.models.PreLoadedApk;
 import com.posed.lspd.nativebridge.NativeAPI;
 import com.posed.lspd.nativebridge.ResourcesHook;
 import com.posed.lspd.util.LspModuleClassLoader;
+import com.posed.lspd.util.StartupTracer;
 
 import java.io.File;
 import java.lang.ref.WeakReference;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
 
 import hidden.HiddenApiBridge;
 
@@ -217,17 +220,30 @@ public final class XpoInit {
         return loadedModules;
     }
 
+    // class loader -> package name of the module it was built for
+    private static final Map<ClassLoader, String> moduleClassLoaders = new ConcurrentHashMap<>();
+
+    /**
+     * @return the package name of the module that owns the class loader, or {@code null}
+     */
+    public static String getModulePackageName(ClassLoader classLoader) {
+        return classLoader == null ? null : moduleClassLoaders.get(classLoader);
+    }
+
     public static void loadModules() {
         var moduleList = serviceClient.getModulesList();
-        moduleList.forEach(module -> {
+        // class loaders are built concurrently, entry points still run in the declared order
+        var classLoaders = moduleList.stream().parallel()
+                .map(module -> prepareModule(module.packageName, module.apkPath, module.file))
+                .collect(Collectors.toList());
+        for (int i = 0; i < moduleList.size(); i++) {
+            var module = moduleList.get(i);
             var apk = module.apkPath;
-            var name = module.packageName;
-            var file = module.file;
             loadedModules.add(apk); // temporarily add it for XSharedPreference
-            if (!loadModule(name, apk, file)) {
+            if (!loadModule(module.packageName, apk, module.file, classLoaders.get(i))) {
                 loadedModules.remove(apk);
             }
-        });
+        }
     }
 
     /**
@@ -267,7 +283,9 @@ public final class XpoInit {
                 }
 
                 if (moduleInstance instanceof IXpoInitPackageResources) {
+                    var begin = StartupTracer.begin();
                     hookResources();
+                    StartupTracer.end("hookResources", null, begin);
                     XpoBridge.hookInitPackageResources(new IXpoInitPackageResources.Wrapper((IXpoInitPackageResources) moduleInstance));
                     count++;
                 }
@@ -279,12 +297,12 @@ public final class XpoInit {
     }
 
     /**
-     * Load a module from an APK by calling the init(String) method for all classes defined
-     * in <code>assets/xposed_init</code>.
+     * Build the class loader of a module and resolve its entry classes without initializing them.
+     * Safe to call concurrently for different modules.
+     *
+     * @return the class loader, or {@code null} if the module can not be loaded
      */
-    private static boolean loadModule(String name, String apk, PreLoadedApk file) {
-        Log.i(TAG, "Loading module " + name + " from " + apk);
-
+    private static ClassLoader prepareModule(String name, String apk, PreLoadedApk file) {
         var sb = new StringBuilder();
         var abis = Process.is64Bit() ? Build.SUPPORTED_64_BIT_ABIS : Build.SUPPORTED_32_BIT_ABIS;
         for (String abi : abis) {
@@ -293,7 +311,13 @@ public final class XpoInit {
         var librarySearchPath = sb.toString();
 
         var initLoader = XpoInit.class.getClassLoader();
+        var begin = StartupTracer.begin();
         var mcl = LspModuleClassLoader.loadApk(apk, file.preLoadedDexes, librarySearchPath, initLoader);
+        StartupTracer.end("loadApk", name, begin);
+        if (mcl == null) {
+            Log.e(TAG, "  Cannot map the dex files of module: " + name);
+            return null;
+        }
 
         try {
             if (mcl.loadClass(XpoBridge.class.getName()).getClassLoader() != initLoader) {
@@ -301,13 +325,34 @@ public final class XpoInit {
                 Log.e(TAG, "  The Xposed API classes are compiled into the module's APK.");
                 Log.e(TAG, "  This may cause strange issues and must be fixed by the module developer.");
                 Log.e(TAG, "  For details, see: https://api.xposed.info/using.html");
-                return false;
+                return null;
             }
         } catch (ClassNotFoundException ignored) {
-            return false;
+            return null;
+        }
+        for (var moduleClassName : file.moduleClassNames) {
+            try {
+                mcl.loadClass(moduleClassName);
+            } catch (Throwable ignored) {
+                // reported by initModule
+            }
         }
+        return mcl;
+    }
+
+    /**
+     * Load a module from an APK by calling the init(String) method for all classes defined
+     * in <code>assets/xposed_init</code>.
+     */
+    private static boolean loadModule(String name, String apk, PreLoadedApk file, ClassLoader mcl) {
+        Log.i(TAG, "Loading module " + name + " from " + apk);
+        if (mcl == null) return false;
+        moduleClassLoaders.put(mcl, name);
         initNativeModule(file.moduleLibraryNames);
-        return initModule(mcl, apk, file.moduleClassNames);
+        var begin = StartupTracer.begin();
+        var loaded = initModule(mcl, apk, file.moduleClassNames);
+        StartupTracer.end("initModule", name, begin);
+        return loaded;
     }
 
     public final static Set<String> loadedPackagesInProcess = ConcurrentHashMap.newKeySet(1);
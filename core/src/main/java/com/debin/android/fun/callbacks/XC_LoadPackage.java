@@ -22,9 +22,16 @@ package com.debin.android.fun.callbacks;
 
 import android.content.pm.ApplicationInfo;
 
-import java.util.concurrent.CopyOnWriteArraySet;
-
 import com.debin.android.fun.IXpoLoadPackage;
+import com.debin.android.fun.XpoBridge;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * This class is only used for internal purposes, except for the {@link LoadPackageParam}
@@ -86,6 +93,67 @@ public abstract class XC_LoadPackage extends XCallback implements IXpoLoadPackag
          * Set to {@code true} if this is the first (and main) application for this process.
          */
         public boolean isFirstApplication;
+
+        private final List<Future<?>> asyncTasks = new ArrayList<>();
+
+        /**
+         * Runs a part of the module's initialization on a background thread.
+         *
+         * <p>The task runs concurrently with the remaining callbacks and with the tasks of other
+         * modules. All tasks are guaranteed to have finished before the app continues after the
+         * callbacks, so whatever the app needs early must still be done synchronously or waited
+         * for through the returned {@link Future}. The task must not wait for the calling thread.
+         * Exceptions thrown by the task are logged.
+         */
+        public Future<?> runAsync(Runnable task) {
+            var future = AsyncExecutor.executor.submit(() -> {
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    XpoBridge.log(t);
+                }
+            });
+            synchronized (asyncTasks) {
+                asyncTasks.add(future);
+            }
+            return future;
+        }
+
+        /**
+         * Waits for all tasks started by {@link #runAsync}, including those they start.
+         *
+         * @hide
+         */
+        public void awaitAsync() {
+            while (true) {
+                Future<?> future;
+                synchronized (asyncTasks) {
+                    if (asyncTasks.isEmpty()) return;
+                    future = asyncTasks.remove(asyncTasks.size() - 1);
+                }
+                var interrupted = false;
+                while (true) {
+                    try {
+                        future.get();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    } catch (ExecutionException ignored) {
+                        break;
+                    }
+                }
+                if (interrupted) Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static final class AsyncExecutor {
+        static final ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1)), r -> {
+                    var thread = new Thread(r, "xposed-async");
+                    thread.setDaemon(true);
+                    return thread;
+                });
     }
 
     /**
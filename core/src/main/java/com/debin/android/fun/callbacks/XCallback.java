@@ -22,11 +22,15 @@ package com.debin.android.fun.callbacks;
 
 import android.os.Bundle;
 
+import com.posed.lspd.core.ApplicationServiceClient;
 import com.posed.lspd.deopt.PrebuiltMethodsDeopter;
+import com.posed.lspd.util.StartupTracer;
 
 import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
 
 import com.debin.android.fun.XpoBridge;
+import com.debin.android.fun.XpoInit;
 
 /**
  * Base class for Xposed callbacks.
@@ -137,21 +141,71 @@ abstract public class XCallback {
             // deopt methods in system apps or priv-apps, this would be not necessary
             // only if we found out how to recompile their apks
             XC_LoadPackage.LoadPackageParam lpp = (XC_LoadPackage.LoadPackageParam) param;
+            var begin = StartupTracer.begin();
             PrebuiltMethodsDeopter.deoptMethods(lpp.packageName, lpp.classLoader);
+            StartupTracer.end("deoptMethods", lpp.packageName, begin);
         }
 
         if (param.callbacks == null)
             throw new IllegalStateException("This object was not created for use with callAll");
 
+        String phase = null;
+        if (param instanceof XC_LoadPackage.LoadPackageParam) {
+            phase = "handleLoadPackage";
+        } else if (param instanceof XC_InitPackageResources.InitPackageResourcesParam) {
+            phase = "handleInitPackageResources";
+        }
         for (int i = 0; i < param.callbacks.length; i++) {
+            var begin = StartupTracer.begin();
             try {
                 param.callbacks[i].call(param);
             } catch (Throwable t) {
                 XpoBridge.log(t);
             }
+            if (phase != null) {
+                var duration = StartupTracer.end(phase, param.callbacks[i].getOwnerName(), begin);
+                checkBudget(param.callbacks[i], phase, duration);
+            }
+        }
+
+        if (param instanceof XC_LoadPackage.LoadPackageParam) {
+            // the app must not continue before the modules' background initialization is done
+            var begin = StartupTracer.begin();
+            ((XC_LoadPackage.LoadPackageParam) param).awaitAsync();
+            StartupTracer.end("awaitAsync", null, begin);
         }
     }
 
+    private static void checkBudget(XCallback callback, String phase, long duration) {
+        var client = ApplicationServiceClient.serviceClient;
+        if (client == null) return;
+        var budget = client.getCallbackBudget();
+        var millis = TimeUnit.NANOSECONDS.toMillis(duration);
+        if (budget <= 0 || millis <= budget) return;
+        var module = XpoInit.getModulePackageName(callback.getOwnerClass().getClassLoader());
+        if (module == null) return;
+        XpoBridge.log(module + " took " + millis + "ms in " + phase + ", over the budget of " + budget + "ms");
+        client.reportSlowCallback(module, phase, millis);
+    }
+
+    /**
+     * Class of whatever registered this callback, for diagnostics.
+     *
+     * @hide
+     */
+    public Class<?> getOwnerClass() {
+        return getClass();
+    }
+
+    /**
+     * Name of whatever registered this callback, for diagnostics.
+     *
+     * @hide
+     */
+    public String getOwnerName() {
+        return getOwnerClass().getName();
+    }
+
     /**
      * @hide
      */
@@ -21,6 +21,7 @@ package com.posed.lspd.core;
 
 import android.os.Bundle;
 import android.os.IBinder;
+import android.os.Parcel;
 import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 
@@ -40,19 +41,46 @@ public class ApplicationServiceClient implements ILSPApplicationService, IBinder
 
     final String processName;
 
+    // from the bootstrap transaction, null if the process has to ask the service
+    private List<Module> bootstrapModules = null;
+    private String prefsBasePath = null;
+    // in milliseconds, -1 until known
+    private long callbackBudget = -1;
+    // 1 or 0, -1 until known
+    private int verboseLog = -1;
+
     private ApplicationServiceClient(@NonNull ILSPApplicationService service, @NonNull String processName) throws RemoteException {
         this.service = service;
         this.processName = processName;
         this.service.asBinder().linkToDeath(this, 0);
     }
 
-    synchronized static void Init(ILSPApplicationService service, String niceName) {
+    /**
+     * @param bootstrap reply of the bootstrap transaction positioned after the obfuscation map,
+     *                  or {@code null}. It is owned and recycled by the caller.
+     */
+    synchronized static void Init(ILSPApplicationService service, String niceName, Parcel bootstrap) {
         var binder = service.asBinder();
         if (serviceClient == null && binder != null) {
             try {
                 serviceClient = new ApplicationServiceClient(service, niceName);
             } catch (RemoteException e) {
                 Utils.logE("link to death error: ", e);
+                return;
+            }
+            try {
+                if (bootstrap != null && bootstrap.dataAvail() > 0 && bootstrap.readInt() != 0) {
+                    serviceClient.bootstrapModules = bootstrap.createTypedArrayList(Module.CREATOR);
+                    serviceClient.prefsBasePath = bootstrap.readString();
+                    serviceClient.callbackBudget = bootstrap.readLong();
+                    serviceClient.verboseLog = bootstrap.readInt();
+                }
+            } catch (RuntimeException e) {
+                Utils.logE("malformed bootstrap: ", e);
+                serviceClient.bootstrapModules = null;
+                serviceClient.prefsBasePath = null;
+                serviceClient.callbackBudget = -1;
+                serviceClient.verboseLog = -1;
             }
         }
     }
@@ -68,6 +96,12 @@ public class ApplicationServiceClient implements ILSPApplicationService, IBinder
 
     @Override
     public List<Module> getModulesList() {
+        // the bootstrap list is handed out once, its dex descriptors are closed by the loader
+        var modules = bootstrapModules;
+        if (modules != null) {
+            bootstrapModules = null;
+            return modules;
+        }
         try {
             return service.getModulesList();
         } catch (RemoteException | NullPointerException ignored) {
@@ -77,6 +111,9 @@ public class ApplicationServiceClient implements ILSPApplicationService, IBinder
 
     @Override
     public String getPrefsPath(String packageName) {
+        if (prefsBasePath != null) {
+            return prefsBasePath + packageName;
+        }
         try {
             return service.getPrefsPath(packageName);
         } catch (RemoteException | NullPointerException ignored) {
@@ -85,10 +122,23 @@ public class ApplicationServiceClient implements ILSPApplicationService, IBinder
     }
 
     @Override
-    public Bundle requestRemotePreference(String packageName, int userId, IBinder callback) {
+    public Bundle requestRemotePreference(String packageName, int userId, String group, IBinder callback) {
+        try {
+            return service.requestRemotePreference(packageName, userId, group, callback);
+        } catch (RemoteException | NullPointerException ignored) {
+        }
         return null;
     }
 
+    @Override
+    public boolean updateRemotePreference(String packageName, int userId, String group, Bundle changes) {
+        try {
+            return service.updateRemotePreference(packageName, userId, group, changes);
+        } catch (RemoteException | NullPointerException ignored) {
+        }
+        return false;
+    }
+
     @Override
     public ParcelFileDescriptor requestInjectedManagerBinder(List<IBinder> binder) {
         try {
@@ -98,6 +148,46 @@ public class ApplicationServiceClient implements ILSPApplicationService, IBinder
         return null;
     }
 
+    @Override
+    public long getCallbackBudget() {
+        if (callbackBudget < 0) {
+            try {
+                callbackBudget = service.getCallbackBudget();
+            } catch (RemoteException | NullPointerException ignored) {
+                callbackBudget = 0;
+            }
+        }
+        return callbackBudget;
+    }
+
+    @Override
+    public void reportSlowCallback(String modulePackageName, String callback, long durationMillis) {
+        try {
+            service.reportSlowCallback(modulePackageName, callback, durationMillis);
+        } catch (RemoteException | NullPointerException ignored) {
+        }
+    }
+
+    @Override
+    public boolean isVerboseLog() {
+        if (verboseLog < 0) {
+            try {
+                verboseLog = service.isVerboseLog() ? 1 : 0;
+            } catch (RemoteException | NullPointerException ignored) {
+                verboseLog = 0;
+            }
+        }
+        return verboseLog != 0;
+    }
+
+    @Override
+    public void reportStartupTrace(String owner, String trace) {
+        try {
+            service.reportStartupTrace(owner, trace);
+        } catch (RemoteException | NullPointerException ignored) {
+        }
+    }
+
     @Override
     public IBinder asBinder() {
         return service.asBinder();
@@ -24,6 +24,7 @@ import android.app.ActivityThread;
 import android.app.LoadedApk;
 import android.content.pm.ApplicationInfo;
 import android.content.res.CompatibilityInfo;
+import android.os.Parcel;
 
 import com.android.internal.os.ZygoteInit;
 import com.debin.android.fun.XpoBridge;
@@ -35,11 +36,14 @@ import com.posed.lspd.hooker.HandleSystemServerProcessHooker;
 import com.posed.lspd.hooker.LoadedApkCtorHooker;
 import com.posed.lspd.hooker.OpenDexFileHooker;
 import com.posed.lspd.service.ILSPApplicationService;
+import com.posed.lspd.util.StartupTracer;
 import com.posed.lspd.util.Utils;
 
 import dalvik.system.DexFile;
 
 public class Startup {
+    private static String processName;
+
     @SuppressWarnings("deprecation")
     private static void startBootstrapHook(boolean isSystem) {
         Utils.logD("startBootstrapHook starts: isSystem = " + isSystem);
@@ -63,18 +67,30 @@ public class Startup {
     public static void bootstrapXposed() {
         // Initialize the Xposed framework
         try {
+            var begin = StartupTracer.begin();
             startBootstrapHook(XpoInit.startsSystemServer);
+            StartupTracer.end("startBootstrapHook", null, begin);
+            begin = StartupTracer.begin();
             XpoInit.loadModules();
+            StartupTracer.end("loadModules", null, begin);
         } catch (Throwable t) {
             Utils.logE("error during Xposed initialization", t);
         }
+        StartupTracer.dump(processName);
     }
 
-    public static void initXposed(boolean isSystem, String processName, ILSPApplicationService service) {
+    public static void initXposed(boolean isSystem, String processName, ILSPApplicationService service, Parcel bootstrap) {
         // init logger
-        ApplicationServiceClient.Init(service, processName);
+        ApplicationServiceClient.Init(service, processName, bootstrap);
+        var client = ApplicationServiceClient.serviceClient;
+        if (client != null && client.isVerboseLog()) {
+            StartupTracer.setReporter(client::reportStartupTrace);
+        }
         XpoBridge.initXResources();
         XpoInit.startsSystemServer = isSystem;
+        Startup.processName = processName;
+        var begin = StartupTracer.begin();
         PrebuiltMethodsDeopter.deoptBootMethods(); // do it once for secondary zygote
+        StartupTracer.end("deoptBootMethods", null, begin);
     }
 }
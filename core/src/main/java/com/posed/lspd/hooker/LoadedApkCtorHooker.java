@@ -22,7 +22,6 @@ package com.posed.lspd.hooker;
 
 import android.app.LoadedApk;
 import android.content.res.XResources;
-import android.util.Log;
 
 import com.debin.android.fun.XC_MethodHook;
 import com.debin.android.fun.XpoHelpers;
@@ -31,6 +30,29 @@ import com.posed.lspd.util.Hookers;
 
 // when a package is loaded for an existing process, trigger the callbacks as well
 public class LoadedApkCtorHooker extends XC_MethodHook {
+    // only OnePlus ROMs preload LoadedApks through ApplicationThread.schedulePreload
+    private static final boolean hasSchedulePreload = hasSchedulePreload();
+
+    private static boolean hasSchedulePreload() {
+        try {
+            var applicationThread = Class.forName("android.app.ActivityThread$ApplicationThread");
+            for (var method : applicationThread.getDeclaredMethods()) {
+                if (method.getName().equals("schedulePreload")) return true;
+            }
+        } catch (Throwable ignored) {
+        }
+        return false;
+    }
+
+    private static boolean isSchedulePreload() {
+        for (var element : new Throwable().getStackTrace()) {
+            if (element.getMethodName().equals("schedulePreload") &&
+                    element.getClassName().equals("android.app.ActivityThread$ApplicationThread")) {
+                return true;
+            }
+        }
+        return false;
+    }
 
     @Override
     protected void afterHookedMethod(MethodHookParam param) {
@@ -67,13 +89,12 @@ public class LoadedApkCtorHooker extends XC_MethodHook {
             }
 
             // OnePlus magic...
-            if (Log.getStackTraceString(new Throwable()).
-                    contains("android.app.ActivityThread$ApplicationThread.schedulePreload")) {
+            if (hasSchedulePreload && isSchedulePreload()) {
                 Hookers.logD("LoadedApk#<init> maybe oneplus's custom opt, skip");
                 return;
             }
 
-            new LoadedApkGetCLHooker(loadedApk);
+            LoadedApkGetCLHooker.watch(loadedApk);
         } catch (Throwable t) {
             Hookers.logE("error when hooking LoadedApk.<init>", t);
         }
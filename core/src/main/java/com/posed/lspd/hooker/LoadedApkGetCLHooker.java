@@ -32,28 +32,46 @@ import com.debin.android.fun.XpoHelpers;
 import com.debin.android.fun.callbacks.XC_LoadPackage;
 import com.posed.lspd.util.Hookers;
 import com.posed.lspd.util.MetaDataReader;
+import com.posed.lspd.util.StartupTracer;
 import com.posed.lspd.util.Utils;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.Map;
+import java.util.WeakHashMap;
 
 import static com.posed.lspd.core.ApplicationServiceClient.serviceClient;
 
 public class LoadedApkGetCLHooker extends XC_MethodHook {
-    private final LoadedApk loadedApk;
-    private final Unhook unhook;
+    // LoadedApks whose class loader has not been handed to the modules yet
+    private static final Map<LoadedApk, Boolean> pending = Collections.synchronizedMap(new WeakHashMap<>());
+    private static volatile boolean hooked = false;
 
-    public LoadedApkGetCLHooker(LoadedApk loadedApk) {
-        this.loadedApk = loadedApk;
-        unhook = XpoHelpers.findAndHookMethod(LoadedApk.class, "getClassLoader", this);
+    private LoadedApkGetCLHooker() {
+    }
+
+    /**
+     * Calls the load package callbacks on the first {@code getClassLoader} of {@code loadedApk}.
+     * All LoadedApks share one hook that is installed on demand and never removed.
+     */
+    public static void watch(LoadedApk loadedApk) {
+        pending.put(loadedApk, Boolean.TRUE);
+        if (hooked) return;
+        synchronized (LoadedApkGetCLHooker.class) {
+            if (!hooked) {
+                XpoHelpers.findAndHookMethod(LoadedApk.class, "getClassLoader", new LoadedApkGetCLHooker());
+                hooked = true;
+            }
+        }
     }
 
     @Override
     protected void afterHookedMethod(MethodHookParam param) {
+        if (pending.isEmpty()) return;
         LoadedApk loadedApk = (LoadedApk) param.thisObject;
 
-        if (loadedApk != this.loadedApk) {
+        if (pending.remove(loadedApk) == null) {
             return;
         }
 
@@ -93,11 +111,10 @@ public class LoadedApkGetCLHooker extends XC_MethodHook {
 
             Hookers.logD("Call handleLoadedPackage: packageName=" + lpparam.packageName + " processName=" + lpparam.processName + " isFirstApplication=" + isFirstApplication + " classLoader=" + lpparam.classLoader + " appInfo=" + lpparam.appInfo);
             XC_LoadPackage.callAll(lpparam);
+            StartupTracer.dump(lpparam.packageName);
 
         } catch (Throwable t) {
             Hookers.logE("error when hooking LoadedApk#getClassLoader", t);
-        } finally {
-            unhook.unhook();
         }
     }
 
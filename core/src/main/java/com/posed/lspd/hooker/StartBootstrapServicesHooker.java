@@ -25,6 +25,7 @@ import com.debin.android.fun.XpoBridge;
 import com.debin.android.fun.XpoInit;
 import com.debin.android.fun.callbacks.XC_LoadPackage;
 import com.posed.lspd.util.Hookers;
+import com.posed.lspd.util.StartupTracer;
 
 import static com.posed.lspd.util.Utils.logD;
 
@@ -44,6 +45,7 @@ public class StartBootstrapServicesHooker extends XC_MethodHook {
             lpparam.appInfo = null;
             lpparam.isFirstApplication = true;
             XC_LoadPackage.callAll(lpparam);
+            StartupTracer.dump(lpparam.packageName);
         } catch (Throwable t) {
             Hookers.logE("error when hooking startBootstrapServices", t);
         }
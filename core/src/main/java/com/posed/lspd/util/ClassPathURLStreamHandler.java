@@ -10,21 +10,20 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.jar.JarFile;
-import java.util.zip.ZipEntry;
 
 import sun.net.www.ParseUtil;
 
 final class ClassPathURLStreamHandler extends Handler {
     private final String fileUri;
-    private final JarFile jarFile;
+    private final ZipIndex zipIndex;
 
-    ClassPathURLStreamHandler(String jarFileName) throws IOException {
-        jarFile = new JarFile(jarFileName);
-        fileUri = new File(jarFileName).toURI().toString();
+    ClassPathURLStreamHandler(ZipIndex zipIndex) {
+        this.zipIndex = zipIndex;
+        fileUri = new File(zipIndex.getName()).toURI().toString();
     }
 
     URL getEntryUrlOrNull(String entryName) {
-        if (jarFile.getEntry(entryName) != null) {
+        if (zipIndex.getEntry(entryName) != null) {
             try {
                 String encodedName = ParseUtil.encodePath(entryName, false);
                 return new URL("jar", null, -1, fileUri + "!/" + encodedName, this);
@@ -35,19 +34,19 @@ final class ClassPathURLStreamHandler extends Handler {
         return null;
     }
 
-    @Override
-    protected URLConnection openConnection(URL url) throws IOException {
-        return new ClassPathURLConnection(url);
+    InputStream getEntryStreamOrNull(String entryName) throws IOException {
+        var entry = zipIndex.getEntry(entryName);
+        return entry == null ? null : zipIndex.getInputStream(entry);
     }
 
     @Override
-    protected void finalize() throws Throwable {
-        jarFile.close();
+    protected URLConnection openConnection(URL url) throws IOException {
+        return new ClassPathURLConnection(url);
     }
 
     private final class ClassPathURLConnection extends JarURLConnection {
         private JarFile connectionJarFile = null;
-        private ZipEntry jarEntry = null;
+        private ZipIndex.Entry indexEntry = null;
         private InputStream jarInput = null;
         private boolean closed = false;
 
@@ -67,9 +66,9 @@ final class ClassPathURLStreamHandler extends Handler {
                 throw new IllegalStateException("JarURLConnection has been closed");
             }
             if (!connected) {
-                jarEntry = jarFile.getEntry(getEntryName());
-                if (jarEntry == null) {
-                    throw new FileNotFoundException("URL=" + url + ", zipfile=" + jarFile.getName());
+                indexEntry = zipIndex.getEntry(getEntryName());
+                if (indexEntry == null) {
+                    throw new FileNotFoundException("URL=" + url + ", zipfile=" + zipIndex.getName());
                 }
                 connected = true;
             }
@@ -79,19 +78,19 @@ final class ClassPathURLStreamHandler extends Handler {
         public JarFile getJarFile() throws IOException {
             connect();
             if (connectionJarFile != null) return connectionJarFile;
-            return connectionJarFile = new JarFile(jarFile.getName());
+            return connectionJarFile = new JarFile(zipIndex.getName());
         }
 
         @Override
         public InputStream getInputStream() throws IOException {
             connect();
             if (jarInput != null) return jarInput;
-            return jarInput = new FilterInputStream(jarFile.getInputStream(jarEntry)) {
+            // the index is shared by the class loader, only the connection's own jar file is closed
+            return jarInput = new FilterInputStream(zipIndex.getInputStream(indexEntry)) {
                 @Override
                 public void close() throws IOException {
                     super.close();
                     closed = true;
-                    jarFile.close();
                     if (connectionJarFile != null) connectionJarFile.close();
                 }
             };
@@ -110,7 +109,7 @@ final class ClassPathURLStreamHandler extends Handler {
         public int getContentLength() {
             try {
                 connect();
-                return (int) getJarEntry().getSize();
+                return (int) indexEntry.size;
             } catch (IOException ignored) {
             }
             return -1;
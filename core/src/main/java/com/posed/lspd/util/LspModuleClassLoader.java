@@ -9,6 +9,7 @@ import android.util.Log;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
@@ -16,11 +17,15 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.jar.JarFile;
 import java.util.stream.Collectors;
 import java.util.zip.ZipEntry;
 
+import com.posed.lspd.models.PreLoadedDex;
+
 import androidx.annotation.NonNull;
 import androidx.annotation.RequiresApi;
 import hidden.ByteBufferDexClassLoader;
@@ -34,6 +39,11 @@ public final class LspModuleClassLoader extends ByteBufferDexClassLoader {
             splitPaths(System.getProperty("java.library.path"));
     private final String apk;
     private final List<File> nativeLibraryDirs = new ArrayList<>();
+    private final Map<String, String> resolvedLibraries = new ConcurrentHashMap<>();
+    private final Object zipIndexLock = new Object();
+    private volatile ZipIndex zipIndex;
+    private volatile ClassPathURLStreamHandler urlHandler;
+    private boolean zipIndexFailed = false;
 
     private static List<File> splitPaths(String searchPath) {
         var result = new ArrayList<File>();
@@ -92,12 +102,31 @@ public final class LspModuleClassLoader extends ByteBufferDexClassLoader {
     @Override
     public String findLibrary(String libraryName) {
         var fileName = System.mapLibraryName(libraryName);
+        var resolved = resolvedLibraries.get(fileName);
+        if (resolved != null) return resolved;
+        resolved = resolveLibrary(fileName);
+        if (resolved != null) resolvedLibraries.put(fileName, resolved);
+        return resolved;
+    }
+
+    private String resolveLibrary(String fileName) {
         for (var file : nativeLibraryDirs) {
             var path = file.getPath();
             if (path.contains(zipSeparator)) {
                 var split = path.split(zipSeparator, 2);
+                var entryName = split[1] + '/' + fileName;
+                if (split[0].equals(apk)) {
+                    // the module's own libraries are looked up in its zip index without any I/O
+                    var index = getZipIndex();
+                    if (index != null) {
+                        var entry = index.getEntry(entryName);
+                        if (entry != null && entry.method == ZipEntry.STORED) {
+                            return split[0] + zipSeparator + entryName;
+                        }
+                        continue;
+                    }
+                }
                 try (var jarFile = new JarFile(split[0])) {
-                    var entryName = split[1] + '/' + fileName;
                     var entry = jarFile.getEntry(entryName);
                     if (entry != null && entry.getMethod() == ZipEntry.STORED) {
                         return split[0] + zipSeparator + entryName;
@@ -130,14 +159,39 @@ public final class LspModuleClassLoader extends ByteBufferDexClassLoader {
         return result.toString();
     }
 
+    private ZipIndex getZipIndex() {
+        var index = zipIndex;
+        if (index != null) return index;
+        synchronized (zipIndexLock) {
+            if (zipIndex == null && !zipIndexFailed) {
+                try {
+                    zipIndex = ZipIndex.open(apk);
+                } catch (IOException e) {
+                    Log.e(TAG, "Can not index " + apk, e);
+                    zipIndexFailed = true;
+                }
+            }
+            return zipIndex;
+        }
+    }
+
+    private ClassPathURLStreamHandler getUrlHandler() {
+        var handler = urlHandler;
+        if (handler != null) return handler;
+        var index = getZipIndex();
+        if (index == null) return null;
+        synchronized (zipIndexLock) {
+            if (urlHandler == null) {
+                urlHandler = new ClassPathURLStreamHandler(index);
+            }
+            return urlHandler;
+        }
+    }
+
     @Override
     protected URL findResource(String name) {
-        try {
-            var urlHandler = new ClassPathURLStreamHandler(apk);
-            return urlHandler.getEntryUrlOrNull(name);
-        } catch (IOException e) {
-            return null;
-        }
+        var handler = getUrlHandler();
+        return handler == null ? null : handler.getEntryUrlOrNull(name);
     }
 
     @Override
@@ -158,6 +212,29 @@ public final class LspModuleClassLoader extends ByteBufferDexClassLoader {
         return (cl == null) ? null : cl.getResource(name);
     }
 
+    @Override
+    public InputStream getResourceAsStream(String name) {
+        var bootResource = Object.class.getClassLoader().getResource(name);
+        if (bootResource != null) {
+            try {
+                return bootResource.openStream();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        var handler = getUrlHandler();
+        if (handler != null) {
+            try {
+                var stream = handler.getEntryStreamOrNull(name);
+                if (stream != null) return stream;
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        final var cl = getParent();
+        return (cl == null) ? null : cl.getResourceAsStream(name);
+    }
+
     @Override
     public Enumeration<URL> getResources(String name) throws IOException {
         @SuppressWarnings("unchecked") final var resources = (Enumeration<URL>[]) new Enumeration<?>[]{
@@ -182,18 +259,37 @@ public final class LspModuleClassLoader extends ByteBufferDexClassLoader {
                 super.toString() + "]";
     }
 
+    private static ByteBuffer mapDex(PreLoadedDex dex) {
+        if (dex.memory == null) return null;
+        try {
+            return dex.memory.mapReadOnly();
+        } catch (ErrnoException e) {
+            Log.w(TAG, "Can not map " + dex, e);
+            return null;
+        }
+    }
+
+    private static void closeDex(PreLoadedDex dex) {
+        if (dex.memory != null) {
+            dex.memory.close();
+        }
+    }
+
+    /**
+     * @return the class loader, or {@code null} if any dex of the module can not be mapped
+     */
     public static ClassLoader loadApk(String apk,
-                                      List<SharedMemory> dexes,
+                                      List<PreLoadedDex> dexes,
                                       String librarySearchPath,
                                       ClassLoader parent) {
-        var dexBuffers = dexes.stream().parallel().map(dex -> {
-            try {
-                return dex.mapReadOnly();
-            } catch (ErrnoException e) {
-                Log.w(TAG, "Can not map " + dex, e);
-                return null;
-            }
-        }).filter(Objects::nonNull).toArray(ByteBuffer[]::new);
+        var dexBuffers = dexes.stream().parallel().map(LspModuleClassLoader::mapDex)
+                .toArray(ByteBuffer[]::new);
+        // a loader without some of the dexes would only fail later with missing classes
+        if (Arrays.stream(dexBuffers).anyMatch(Objects::isNull)) {
+            Arrays.stream(dexBuffers).filter(Objects::nonNull).forEach(SharedMemory::unmap);
+            dexes.forEach(LspModuleClassLoader::closeDex);
+            return null;
+        }
         LspModuleClassLoader cl;
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
             cl = new LspModuleClassLoader(dexBuffers, librarySearchPath, parent, apk);
@@ -202,7 +298,7 @@ public final class LspModuleClassLoader extends ByteBufferDexClassLoader {
             cl.initNativeLibraryDirs(librarySearchPath);
         }
         Arrays.stream(dexBuffers).parallel().forEach(SharedMemory::unmap);
-        dexes.stream().parallel().forEach(SharedMemory::close);
+        dexes.stream().parallel().forEach(LspModuleClassLoader::closeDex);
         return cl;
     }
 }
@@ -24,8 +24,10 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.jar.JarFile;
 
 import pxb.android.axml.AxmlReader;
@@ -33,10 +35,36 @@ import pxb.android.axml.AxmlVisitor;
 import pxb.android.axml.NodeVisitor;
 
 public class MetaDataReader {
+    private static final Map<String, CachedMetaData> cache = new ConcurrentHashMap<>();
     private final HashMap<String, Object> metaData = new HashMap<>();
 
+    private static class CachedMetaData {
+        final long lastModified;
+        final long length;
+        final Map<String, Object> metaData;
+
+        CachedMetaData(long lastModified, long length, Map<String, Object> metaData) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.metaData = metaData;
+        }
+    }
+
+    /**
+     * The parsed meta-data of an apk is cached per path until the file changes.
+     * The returned map is read-only.
+     */
     public static Map<String, Object> getMetaData(File apk) throws IOException {
-        return new MetaDataReader(apk).metaData;
+        var path = apk.getPath();
+        var lastModified = apk.lastModified();
+        var length = apk.length();
+        var cached = cache.get(path);
+        if (cached != null && cached.lastModified == lastModified && cached.length == length) {
+            return cached.metaData;
+        }
+        var metaData = Collections.unmodifiableMap(new MetaDataReader(apk).metaData);
+        cache.put(path, new CachedMetaData(lastModified, length, metaData));
+        return metaData;
     }
 
     private MetaDataReader(File apk) throws IOException {
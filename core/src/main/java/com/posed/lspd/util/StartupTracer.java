@@ -0,0 +1,102 @@
+/*
+ * This file is part of LSPosed.
+ *
+ * LSPosed is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LSPosed is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LSPosed.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (C) 2022 LSPosed Contributors
+ */
+
+package com.posed.lspd.util;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Records how long the phases of the injection take in this process.
+ * Records go to a fixed buffer, and {@link #dump} reports them aggregated by phase and subject.
+ * Nothing is recorded until a reporter is set, which only happens with verbose logging on.
+ */
+public final class StartupTracer {
+    private static final int CAPACITY = 512;
+    private static final String[] phases = new String[CAPACITY];
+    private static final String[] subjects = new String[CAPACITY];
+    private static final long[] durations = new long[CAPACITY];
+    private static final AtomicInteger next = new AtomicInteger();
+    // (owner, aggregate) -> sent to the daemon, null when tracing is off
+    private static volatile BiConsumer<String, String> reporter = null;
+
+    private StartupTracer() {
+    }
+
+    public static void setReporter(BiConsumer<String, String> reporter) {
+        StartupTracer.reporter = reporter;
+    }
+
+    public static long begin() {
+        return System.nanoTime();
+    }
+
+    /**
+     * @param subject the module or package the phase ran for, or {@code null}
+     * @param begin   the value {@link #begin} returned
+     * @return the duration of the phase in nanoseconds
+     */
+    public static long end(String phase, String subject, long begin) {
+        var duration = System.nanoTime() - begin;
+        if (reporter == null) return duration;
+        var slot = next.getAndIncrement();
+        if (slot >= CAPACITY) return duration;
+        durations[slot] = duration;
+        subjects[slot] = subject;
+        phases[slot] = phase;
+        return duration;
+    }
+
+    /**
+     * Reports what was recorded since the last dump and clears the buffer.
+     */
+    public static synchronized void dump(String owner) {
+        var reporter = StartupTracer.reporter;
+        if (reporter == null) return;
+        var recorded = next.getAndSet(0);
+        var count = Math.min(recorded, CAPACITY);
+        if (count == 0) return;
+        // phase/subject -> {total nanos, times}
+        var totals = new LinkedHashMap<String, long[]>();
+        for (int i = 0; i < count; i++) {
+            var phase = phases[i];
+            if (phase == null) continue;
+            var key = subjects[i] == null ? phase : phase + "/" + subjects[i];
+            var total = totals.computeIfAbsent(key, k -> new long[2]);
+            total[0] += durations[i];
+            total[1]++;
+            phases[i] = null;
+        }
+        if (totals.isEmpty()) return;
+        var sb = new StringBuilder();
+        totals.forEach((key, total) -> {
+            sb.append(key);
+            if (total[1] > 1) sb.append(" x").append(total[1]);
+            sb.append(String.format(Locale.ROOT, " %.2fms, ", total[0] / 1e6));
+        });
+        sb.setLength(sb.length() - 2);
+        if (recorded > CAPACITY) {
+            sb.append(" (").append(recorded - CAPACITY).append(" records dropped)");
+        }
+        Utils.logD("Startup trace of " + owner + ": " + sb);
+        reporter.accept(owner, sb.toString());
+    }
+}
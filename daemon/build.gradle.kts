@@ -82,6 +82,11 @@ android {
             }
         }
     }
+    testOptions {
+        // android.util.Log is only a stub in host tests
+        unitTests.isReturnDefaultValues = true
+    }
+
     namespace = "com.posed.daemon"
 }
 
@@ -131,4 +136,5 @@ dependencies {
     implementation(projects.hiddenapi.bridge)
     implementation(projects.services.daemonService)
     implementation(projects.services.managerService)
+    testImplementation("junit:junit:4.13.2")
 }
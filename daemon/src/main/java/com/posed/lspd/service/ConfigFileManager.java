@@ -29,11 +29,14 @@ import android.system.ErrnoException;
 import android.system.Os;
 import android.system.OsConstants;
 import android.util.Log;
+import android.util.Pair;
 
 import com.posed.daemon.BuildConfig;
 import com.posed.lspd.models.PreLoadedApk;
+import com.posed.lspd.models.PreLoadedDex;
 import com.posed.lspd.util.InstallerVerifier;
 import com.posed.lspd.util.Utils;
+import com.posed.lspd.util.ZipIndex;
 
 import java.io.BufferedReader;
 import java.io.File;
@@ -44,9 +47,12 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
@@ -54,18 +60,25 @@ import java.nio.file.OpenOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.Instant;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
 
 import androidx.annotation.Nullable;
@@ -80,7 +93,20 @@ public class ConfigFileManager {
     private static final Path configDirPath = basePath.resolve("config");
     static final File dbPath = configDirPath.resolve("modules_config.db").toFile();
     private static final Path logDirPath = basePath.resolve("log");
+    private static final Path scopeTablePath = basePath.resolve("scope_table");
+    // keep in sync with magisk-loader/src/main/jni/src/scope_table.h
+    private static final int SCOPE_TABLE_MAGIC = 0x5450534c;
+    private static final int SCOPE_TABLE_VERSION = 1;
+    private static final int SCOPE_TABLE_HEADER_SIZE = 64;
+    private static final int SCOPE_TABLE_BOOT_ID_SIZE = 40;
+    private static final int SCOPE_TABLE_ENTRY_SIZE = 12;
+    private static byte[] bootId = null;
     private static final Path oldLogDirPath = basePath.resolve("log.old");
+    private static final Path moduleCacheDirPath = basePath.resolve("cache");
+    private static final int MODULE_CACHE_VERSION = 2;
+    // obfuscated payloads are only valid with the signatures they were made with, which are
+    // generated once per boot
+    private static final Path obfuscationMapPath = basePath.resolve("obfuscation_map");
     private static final DateTimeFormatter formatter =
             DateTimeFormatter.ISO_LOCAL_DATE_TIME.withZone(Utils.getZoneId());
     @SuppressWarnings("FieldCanBeLocal")
@@ -88,6 +114,14 @@ public class ConfigFileManager {
     private static Resources res = null;
     private static ParcelFileDescriptor fd = null;
     private static SharedMemory preloadDex = null;
+    // apkPath, key of the cached module payload
+    private static final Map<String, String> moduleCacheKeys = new ConcurrentHashMap<>();
+    // a cache entry is only read, written or removed with the lock of its key
+    private static final Object[] moduleCacheLocks = new Object[16];
+
+    static {
+        Arrays.setAll(moduleCacheLocks, i -> new Object());
+    }
 
     static {
         try {
@@ -254,6 +288,8 @@ public class ConfigFileManager {
                 zipAddFile(os, p.resolve("sepolicy.rule"), magiskDataDir);
             });
             ConfigManager.getInstance().exportScopes(os);
+            ConfigManager.getInstance().exportPrefsCacheStats(os);
+            ConfigManager.getInstance().exportStartupTraces(os);
         } catch (Throwable e) {
             Log.w(ServiceManager.TAG, "get log", e);
             throw new IllegalStateException(e);
@@ -309,10 +345,29 @@ public class ConfigFileManager {
     }
 
     private static SharedMemory readDex(InputStream in, boolean obfuscate) throws IOException, ErrnoException {
-        var memory = SharedMemory.create(null, in.available());
+        return readDex(in, in.available(), obfuscate);
+    }
+
+    private static SharedMemory readDex(InputStream in, long size, boolean obfuscate) throws IOException, ErrnoException {
+        var memory = SharedMemory.create(null, (int) size);
         var byteBuffer = memory.mapReadWrite();
-        Channels.newChannel(in).read(byteBuffer);
+        var channel = Channels.newChannel(in);
+        while (byteBuffer.hasRemaining()) {
+            if (channel.read(byteBuffer) < 0) break;
+        }
         SharedMemory.unmap(byteBuffer);
+        return protectDex(memory, obfuscate);
+    }
+
+    private static SharedMemory readDex(ByteBuffer in, boolean obfuscate) throws ErrnoException {
+        var memory = SharedMemory.create(null, in.remaining());
+        var byteBuffer = memory.mapReadWrite();
+        byteBuffer.put(in);
+        SharedMemory.unmap(byteBuffer);
+        return protectDex(memory, obfuscate);
+    }
+
+    private static SharedMemory protectDex(SharedMemory memory, boolean obfuscate) throws ErrnoException {
         if (obfuscate) {
             var newMemory = ObfuscationManager.obfuscateDex(memory);
             if (memory != newMemory) {
@@ -324,19 +379,28 @@ public class ConfigFileManager {
         return memory;
     }
 
-    private static void readDexes(ZipFile apkFile, List<SharedMemory> preLoadedDexes, boolean obfuscate) {
+    // every dex is copied into anonymous memory, a file descriptor would show up in /proc/self/fd
+    private static void readDexes(ZipIndex apkFile, List<PreLoadedDex> preLoadedDexes, boolean obfuscate) {
         int secondary = 2;
         for (var dexFile = apkFile.getEntry("classes.dex"); dexFile != null;
              dexFile = apkFile.getEntry("classes" + secondary + ".dex"), secondary++) {
-            try (var is = apkFile.getInputStream(dexFile)) {
-                preLoadedDexes.add(readDex(is, obfuscate));
+            try {
+                var dex = new PreLoadedDex();
+                if (dexFile.method == ZipEntry.STORED) {
+                    dex.memory = readDex(apkFile.getRawData(dexFile), obfuscate);
+                } else {
+                    try (var is = apkFile.getInputStream(dexFile)) {
+                        dex.memory = readDex(is, dexFile.size, obfuscate);
+                    }
+                }
+                preLoadedDexes.add(dex);
             } catch (IOException | ErrnoException e) {
-                Log.w(ServiceManager.TAG, "Can not load " + dexFile + " in " + apkFile, e);
+                Log.w(ServiceManager.TAG, "Can not load " + dexFile.name + " in " + apkFile.getName(), e);
             }
         }
     }
 
-    private static void readName(ZipFile apkFile, String initName, List<String> names) {
+    private static void readName(ZipIndex apkFile, String initName, List<String> names) {
         var initEntry = apkFile.getEntry(initName);
         if (initEntry == null) return;
         try (var in = apkFile.getInputStream(initEntry)) {
@@ -348,27 +412,63 @@ public class ConfigFileManager {
                 names.add(name);
             }
         } catch (IOException e) {
-            Log.e(ServiceManager.TAG, "Can not open " + initEntry, e);
+            Log.e(ServiceManager.TAG, "Can not open " + initEntry.name, e);
+        }
+    }
+
+    static void closeDex(PreLoadedDex dex) {
+        if (dex.memory != null) {
+            dex.memory.close();
         }
     }
 
     @Nullable
     static PreLoadedApk loadModule(String path, boolean obfuscate) {
         if (path == null) return null;
+        var globalPath = ServiceManager.toGlobalNamespace(path);
+        // only the obfuscation is worth caching, anything else is a plain copy of the apk
+        var key = obfuscate ? getModuleCacheKey(globalPath) : null;
+        if (key == null) return prepareModule(path, globalPath, obfuscate);
+        moduleCacheKeys.put(path, key);
+        // a concurrent load of the same module waits and then reads what this one stored
+        synchronized (getModuleCacheLock(key)) {
+            var cached = loadCachedModule(key);
+            if (cached != null) {
+                Log.d(ServiceManager.TAG, "Loaded " + path + " from cache " + key);
+                return cached;
+            }
+            var file = prepareModule(path, globalPath, obfuscate);
+            if (file != null) {
+                storeCachedModule(key, file);
+            }
+            return file;
+        }
+    }
+
+    private static Object getModuleCacheLock(String key) {
+        return moduleCacheLocks[(key.hashCode() & 0x7fffffff) % moduleCacheLocks.length];
+    }
+
+    @Nullable
+    private static PreLoadedApk prepareModule(String path, File globalPath, boolean obfuscate) {
         var file = new PreLoadedApk();
-        var preLoadedDexes = new ArrayList<SharedMemory>();
+        var preLoadedDexes = new ArrayList<PreLoadedDex>();
         var moduleClassNames = new ArrayList<String>(1);
         var moduleLibraryNames = new ArrayList<String>(1);
-        try (var apkFile = new ZipFile(ServiceManager.toGlobalNamespace(path))) {
+        try {
+            var apkFile = ZipIndex.open(globalPath.getPath());
             readDexes(apkFile, preLoadedDexes, obfuscate);
             readName(apkFile, "assets/xposed_init", moduleClassNames);
             readName(apkFile, "assets/native_init", moduleLibraryNames);
         } catch (IOException e) {
             Log.e(ServiceManager.TAG, "Can not open " + path, e);
+            preLoadedDexes.forEach(ConfigFileManager::closeDex);
+            return null;
+        }
+        if (preLoadedDexes.isEmpty() || moduleClassNames.isEmpty()) {
+            preLoadedDexes.forEach(ConfigFileManager::closeDex);
             return null;
         }
-        if (preLoadedDexes.isEmpty()) return null;
-        if (moduleClassNames.isEmpty()) return null;
 
         if (obfuscate) {
             var signatures = ObfuscationManager.getSignatures();
@@ -389,6 +489,267 @@ public class ConfigFileManager {
         return file;
     }
 
+    /**
+     * The key covers everything the obfuscated payload depends on: the apk itself, the cache
+     * format and the signatures, which change with every boot.
+     */
+    @Nullable
+    private static String getModuleCacheKey(File apk) {
+        try {
+            var attrs = Files.readAttributes(apk.toPath(), BasicFileAttributes.class);
+            var sb = new StringBuilder()
+                    .append(MODULE_CACHE_VERSION).append('\0')
+                    .append(BuildConfig.VERSION_CODE).append('\0')
+                    .append(apk.getPath()).append('\0')
+                    .append(attrs.size()).append('\0')
+                    .append(attrs.lastModifiedTime().toMillis());
+            new TreeMap<>(ObfuscationManager.getSignatures()).forEach((k, v) ->
+                    sb.append('\0').append(k).append('=').append(v));
+            var digest = MessageDigest.getInstance("SHA-256").digest(sb.toString().getBytes(StandardCharsets.UTF_8));
+            var key = new StringBuilder(digest.length * 2);
+            for (var b : digest) {
+                key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return key.toString();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            Log.w(ServiceManager.TAG, "Can not compute cache key of " + apk, e);
+            return null;
+        }
+    }
+
+    @Nullable
+    private static PreLoadedApk loadCachedModule(String key) {
+        var dir = moduleCacheDirPath.resolve(key);
+        var meta = dir.resolve("meta");
+        if (!Files.isRegularFile(meta)) return null;
+        var preLoadedDexes = new ArrayList<PreLoadedDex>();
+        var moduleClassNames = new ArrayList<String>(1);
+        var moduleLibraryNames = new ArrayList<String>(1);
+        try {
+            for (var line : Files.readAllLines(meta, StandardCharsets.UTF_8)) {
+                var parts = line.split(" ", 3);
+                switch (parts[0]) {
+                    case "blob": {
+                        var blob = dir.resolve(parts[1] + ".dex");
+                        var size = Long.parseLong(parts[2]);
+                        // copied, the processes only get anonymous memory
+                        try (var in = FileChannel.open(blob, StandardOpenOption.READ)) {
+                            if (in.size() != size) {
+                                throw new IOException("Size mismatch of " + blob);
+                            }
+                            var dex = new PreLoadedDex();
+                            dex.memory = readDex(in.map(FileChannel.MapMode.READ_ONLY, 0, size), false);
+                            preLoadedDexes.add(dex);
+                        }
+                        break;
+                    }
+                    case "class":
+                        moduleClassNames.add(parts[1]);
+                        break;
+                    case "library":
+                        moduleLibraryNames.add(parts[1]);
+                        break;
+                    case "v" + MODULE_CACHE_VERSION:
+                        break;
+                    default:
+                        throw new IOException("Unknown cache record " + parts[0]);
+                }
+            }
+        } catch (IOException | ErrnoException | RuntimeException e) {
+            Log.w(ServiceManager.TAG, "Invalid module cache " + key, e);
+            preLoadedDexes.forEach(ConfigFileManager::closeDex);
+            try {
+                deleteFolderIfExists(dir);
+            } catch (IOException ignored) {
+            }
+            return null;
+        }
+        if (preLoadedDexes.isEmpty() || moduleClassNames.isEmpty()) return null;
+        var file = new PreLoadedApk();
+        file.preLoadedDexes = preLoadedDexes;
+        file.moduleClassNames = moduleClassNames;
+        file.moduleLibraryNames = moduleLibraryNames;
+        return file;
+    }
+
+    // must hold the lock of the key
+    private static void storeCachedModule(String key, PreLoadedApk file) {
+        var dir = moduleCacheDirPath.resolve(key);
+        var tmp = moduleCacheDirPath.resolve(key + ".tmp");
+        try {
+            deleteFolderIfExists(tmp);
+            Files.createDirectories(tmp);
+            var meta = new StringBuilder("v" + MODULE_CACHE_VERSION + "\n");
+            var index = 0;
+            for (var dex : file.preLoadedDexes) {
+                var buffer = dex.memory.mapReadOnly();
+                try (var out = FileChannel.open(tmp.resolve(index + ".dex"),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                    while (buffer.hasRemaining()) out.write(buffer);
+                } finally {
+                    SharedMemory.unmap(buffer);
+                }
+                meta.append("blob ").append(index).append(' ').append(dex.memory.getSize()).append('\n');
+                index++;
+            }
+            file.moduleClassNames.forEach(n -> meta.append("class ").append(n).append('\n'));
+            file.moduleLibraryNames.forEach(n -> meta.append("library ").append(n).append('\n'));
+            // meta is written last, a cache entry without it is never used
+            Files.write(tmp.resolve("meta"), meta.toString().getBytes(StandardCharsets.UTF_8));
+            deleteFolderIfExists(dir);
+            Files.move(tmp, dir, StandardCopyOption.ATOMIC_MOVE);
+            SELinux.setFileContext(moduleCacheDirPath.toString(), "u:object_r:system_file:s0");
+            try (var files = Files.walk(dir)) {
+                files.forEach(p -> SELinux.setFileContext(p.toString(), "u:object_r:system_file:s0"));
+            }
+        } catch (IOException | ErrnoException e) {
+            Log.w(ServiceManager.TAG, "Can not cache module " + key, e);
+            try {
+                deleteFolderIfExists(tmp);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Removes cached payloads of every apk that is not among {@code apkPaths}.
+     */
+    static void pruneModuleCache(Collection<String> apkPaths) {
+        var keep = new HashSet<String>();
+        for (var path : apkPaths) {
+            var key = moduleCacheKeys.get(path);
+            if (key != null) keep.add(key);
+        }
+        moduleCacheKeys.keySet().retainAll(apkPaths);
+        if (!Files.isDirectory(moduleCacheDirPath)) return;
+        try (var dirs = Files.list(moduleCacheDirPath)) {
+            dirs.forEach(p -> {
+                var key = p.getFileName().toString();
+                if (key.endsWith(".tmp")) key = key.substring(0, key.length() - 4);
+                if (keep.contains(key)) return;
+                synchronized (getModuleCacheLock(key)) {
+                    try {
+                        deleteFolderIfExists(p);
+                    } catch (IOException e) {
+                        Log.w(ServiceManager.TAG, "Can not remove module cache " + p, e);
+                    }
+                }
+            });
+        } catch (IOException e) {
+            Log.w(ServiceManager.TAG, "Can not list module cache", e);
+        }
+    }
+
+    /**
+     * Reads the obfuscation signatures stored by this daemon version during this boot, so that a
+     * restarted daemon keeps them. A new boot gets new signatures.
+     *
+     * @return original to replacement, or {@code null} if there are none
+     */
+    @Nullable
+    static Map<String, String> loadObfuscationMap() {
+        if (!Files.isRegularFile(obfuscationMapPath)) return null;
+        try {
+            var lines = Files.readAllLines(obfuscationMapPath, StandardCharsets.UTF_8);
+            if (lines.isEmpty() || !lines.get(0).equals(getObfuscationMapHeader())) return null;
+            var map = new TreeMap<String, String>();
+            for (var line : lines.subList(1, lines.size())) {
+                var parts = line.split(" ", 2);
+                if (parts.length != 2) return null;
+                map.put(parts[0], parts[1]);
+            }
+            return map;
+        } catch (IOException e) {
+            Log.w(ServiceManager.TAG, "Can not read obfuscation map", e);
+            return null;
+        }
+    }
+
+    static void storeObfuscationMap(Map<String, String> signatures) {
+        var tmp = basePath.resolve("obfuscation_map.tmp");
+        try {
+            var sb = new StringBuilder(getObfuscationMapHeader()).append('\n');
+            new TreeMap<>(signatures).forEach((k, v) -> sb.append(k).append(' ').append(v).append('\n'));
+            Files.write(tmp, sb.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, obfuscationMapPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            SELinux.setFileContext(obfuscationMapPath.toString(), "u:object_r:system_file:s0");
+        } catch (IOException e) {
+            Log.w(ServiceManager.TAG, "Can not store obfuscation map", e);
+        }
+    }
+
+    private static String getObfuscationMapHeader() throws IOException {
+        return "v" + BuildConfig.VERSION_CODE + " " + new String(getBootId(), StandardCharsets.US_ASCII).trim();
+    }
+
+    private static byte[] getBootId() throws IOException {
+        if (bootId == null) {
+            var id = new String(Files.readAllBytes(Paths.get("/proc/sys/kernel/random/boot_id")),
+                    StandardCharsets.US_ASCII).trim().getBytes(StandardCharsets.US_ASCII);
+            bootId = Arrays.copyOf(id, SCOPE_TABLE_BOOT_ID_SIZE);
+        }
+        return bootId;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Publishes the processes that may be hooked, so that the zygisk loader skips the others
+     * without a binder call. Every uid in {@code wildcardUids} matches all of its processes.
+     * The file is updated in place under a sequence lock since readers keep it mapped, and
+     * {@code scopes == null} leaves it invalid so that readers ask the daemon instead.
+     */
+    static synchronized void writeScopeTable(@Nullable Collection<ConfigManager.ProcessScope> scopes,
+                                             Collection<Integer> wildcardUids) {
+        try (var channel = FileChannel.open(scopeTablePath, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            var header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+            var seq = 0;
+            if (channel.size() >= SCOPE_TABLE_HEADER_SIZE && channel.read(header, 0) == 12
+                    && header.getInt(0) == SCOPE_TABLE_MAGIC) {
+                seq = header.getInt(8);
+            }
+            // odd while the content is not consistent
+            if (seq % 2 == 0) seq++;
+            header.clear();
+            header.putInt(SCOPE_TABLE_MAGIC).putInt(SCOPE_TABLE_VERSION).putInt(seq).flip();
+            writeFully(channel, header, 0);
+            if (scopes == null) return;
+
+            var entries = new ArrayList<Pair<Integer, byte[]>>(scopes.size() + wildcardUids.size());
+            for (var scope : scopes) {
+                entries.add(new Pair<>(scope.uid, scope.processName.getBytes(StandardCharsets.UTF_8)));
+            }
+            for (var uid : wildcardUids) {
+                entries.add(new Pair<>(uid, new byte[0]));
+            }
+            entries.sort((a, b) -> Integer.compare(a.first, b.first));
+            var namesSize = entries.stream().mapToInt(e -> e.second.length).sum();
+            var size = SCOPE_TABLE_HEADER_SIZE + entries.size() * SCOPE_TABLE_ENTRY_SIZE + namesSize;
+            var body = ByteBuffer.allocate(size - 12).order(ByteOrder.LITTLE_ENDIAN);
+            body.putInt(entries.size()).putInt(size).put(getBootId()).putInt(0);
+            var nameOffset = SCOPE_TABLE_HEADER_SIZE + entries.size() * SCOPE_TABLE_ENTRY_SIZE;
+            for (var entry : entries) {
+                body.putInt(entry.first).putInt(nameOffset).putInt(entry.second.length);
+                nameOffset += entry.second.length;
+            }
+            for (var entry : entries) {
+                body.put(entry.second);
+            }
+            body.flip();
+            writeFully(channel, body, 12);
+            header.clear();
+            header.putInt(seq + 1).flip();
+            writeFully(channel, header, 8);
+        } catch (IOException e) {
+            Log.w(ServiceManager.TAG, "Can not write scope table", e);
+        }
+    }
+
     static boolean tryLock() {
         var openOptions = new HashSet<OpenOption>();
         openOptions.add(StandardOpenOption.CREATE);
@@ -31,8 +31,10 @@ import android.content.pm.PackageInfo;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteStatement;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.IBinder;
 import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.os.SELinux;
@@ -46,6 +48,12 @@ import android.util.Pair;
 import com.posed.daemon.BuildConfig;
 import com.posed.lspd.models.Application;
 import com.posed.lspd.models.Module;
+import com.posed.lspd.models.PreLoadedApk;
+import com.posed.lspd.models.PreLoadedDex;
+import com.posed.lspd.models.SlowCallback;
+import com.posed.lspd.util.OrderedPreparer;
+import com.posed.lspd.util.PreferenceCodec;
+import com.posed.lspd.util.UpdateCoalescer;
 
 import org.apache.commons.lang3.SerializationUtils;
 
@@ -63,9 +71,11 @@ import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.PosixFilePermissions;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -73,6 +83,9 @@ import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
@@ -82,6 +95,7 @@ import java.util.zip.ZipOutputStream;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import io.github.xposed.xposedservice.IXRemotePreferenceCallback;
 
 import static com.posed.lspd.service.PackageService.MATCH_ALL_FLAGS;
 import static com.posed.lspd.service.PackageService.PER_USER_RANGE;
@@ -96,18 +110,48 @@ public class ConfigManager {
     private boolean verboseLog = true;
     private boolean dexObfuscate = false;
     private boolean autoAddShortcut = true;
+    private long callbackBudget = DEFAULT_CALLBACK_BUDGET;
     private String miscPath = null;
 
+    static final long DEFAULT_CALLBACK_BUDGET = 200;
+    private static final int MAX_SLOW_CALLBACKS = 256;
+    // <module, process> -> the slowest report since boot, the oldest pair is evicted first
+    private final Map<Pair<String, String>, SlowCallback> slowCallbacks = new LinkedHashMap<>();
+    private static final int MAX_STARTUP_TRACES = 256;
+    private static final int MAX_STARTUP_TRACE_LENGTH = 4096;
+    // the latest traces reported by hooked processes while verbose logging is on, oldest first
+    private final LinkedList<String> startupTraces = new LinkedList<>();
+
     private int managerUid = -1;
+    // whether the published scope table matches cachedScope
+    private boolean scopeTableValid = true;
+    private volatile long cacheGeneration = 0;
+    // dexes of replaced modules, closed once no binder thread can still be writing them
+    private final List<PreLoadedDex> retiredDexes = new ArrayList<>();
+    // guarded by retiredDexes
+    private int moduleListWriters = 0;
 
     private final Handler cacheHandler;
 
+    // bounded, so that preparing many modules at once does not starve the binder threads
+    private final OrderedPreparer<Module, PreLoadedApk> modulePreparer =
+            new OrderedPreparer<>(Executors.newFixedThreadPool(
+                    Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1)), r -> {
+                        var thread = new Thread(r, "module-preparer");
+                        thread.setDaemon(true);
+                        return thread;
+                    }));
+
     private long lastModuleCacheTime = 0;
     private long requestModuleCacheTime = 0;
 
     private long lastScopeCacheTime = 0;
     private long requestScopeCacheTime = 0;
 
+    private static final long CACHE_UPDATE_WINDOW = 200;
+    private static final long CACHE_UPDATE_MAX_DELAY = 1000;
+    private final UpdateCoalescer<Pair<String, Integer>> cacheUpdates;
+
     private boolean sepolicyLoaded = true;
 
     private String api = "(???)";
@@ -136,6 +180,41 @@ public class ConfigManager {
         }
     }
 
+    // XRemotePreference instances of a group, guarded by remotePrefsCallbacks
+    private final Map<PrefsGroup, Map<IBinder, IXRemotePreferenceCallback>> remotePrefsCallbacks = new HashMap<>();
+    // single thread, so that every subscriber receives the diffs in commit order
+    private final ExecutorService remotePrefsNotifier = Executors.newSingleThreadExecutor(r -> {
+        var thread = new Thread(r, "remote-prefs-notifier");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static class PrefsGroup {
+        final String moduleName;
+        final int userId;
+        final String group;
+
+        PrefsGroup(@NonNull String moduleName, int userId, @NonNull String group) {
+            this.moduleName = moduleName;
+            this.userId = userId;
+            this.group = group;
+        }
+
+        @Override
+        public boolean equals(@Nullable Object o) {
+            if (o instanceof PrefsGroup) {
+                PrefsGroup p = (PrefsGroup) o;
+                return p.moduleName.equals(moduleName) && p.userId == userId && p.group.equals(group);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return (moduleName.hashCode() * 31 + group.hashCode()) ^ userId;
+        }
+    }
+
     private final SQLiteStatement createModulesTable = db.compileStatement("CREATE TABLE IF NOT EXISTS modules (" +
             "mid integer PRIMARY KEY AUTOINCREMENT," +
             "module_pkg_name text NOT NULL UNIQUE," +
@@ -166,22 +245,71 @@ public class ConfigManager {
             "  ON DELETE CASCADE" +
             ");");
 
+    // compiled once the tables exist, only used inside executeInTransaction
+    private final Object dbLock = new Object();
+    private SQLiteStatement insertScope;
+    private SQLiteStatement deleteScope;
+    private SQLiteStatement replaceConfig;
+    private SQLiteStatement deleteConfig;
+
     private final Map<ProcessScope, List<Module>> cachedScope = new ConcurrentHashMap<>();
+    // <app, user> -> its part of cachedScope, guarded by this
+    private final Map<Pair<String, Integer>, Map<ProcessScope, List<Module>>> appScopes = new HashMap<>();
+    // process -> apps contributing to it, guarded by this
+    private final Map<ProcessScope, Set<Pair<String, Integer>>> processApps = new HashMap<>();
+    // uid -> its processes in cachedScope, written together with cachedScope
+    private final Map<Integer, Set<ProcessScope>> scopesByUid = new ConcurrentHashMap<>();
 
     // packageName, Module
     private final Map<String, Module> cachedModule = new ConcurrentHashMap<>();
 
-    // packageName, userId, group, key, value
-    private final Map<Pair<String, Integer>, Map<String, ConcurrentHashMap<String, Object>>> cachedConfig = new ConcurrentHashMap<>();
+    private static final int MAX_CACHED_PREFS_GROUPS = 128;
+    private final AtomicLong prefsCacheHits = new AtomicLong();
+    private final AtomicLong prefsCacheMisses = new AtomicLong();
+    private final AtomicLong prefsCacheEvictions = new AtomicLong();
+    // <packageName, userId, group> -> key, value; the least recently read group is evicted first
+    private final Map<PrefsGroup, ConcurrentHashMap<String, Object>> cachedConfig = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<PrefsGroup, ConcurrentHashMap<String, Object>> eldest) {
+            if (size() <= MAX_CACHED_PREFS_GROUPS) return false;
+            prefsCacheEvictions.incrementAndGet();
+            return true;
+        }
+    };
 
     private void updateCaches(boolean sync) {
-        synchronized (cacheHandler) {
-            requestScopeCacheTime = requestModuleCacheTime = SystemClock.elapsedRealtime();
-        }
         if (sync) {
+            synchronized (cacheHandler) {
+                requestScopeCacheTime = requestModuleCacheTime = SystemClock.elapsedRealtime();
+            }
             cacheModules();
         } else {
-            cacheHandler.post(this::cacheModules);
+            scheduleCacheUpdate(null);
+        }
+    }
+
+    /**
+     * Coalesces cache updates through {@link #cacheUpdates}, so that a burst of package changes
+     * costs one update. The update runs once no request came in for {@link #CACHE_UPDATE_WINDOW},
+     * but no later than {@link #CACHE_UPDATE_MAX_DELAY} after the first request of the burst.
+     *
+     * @param app the app whose scope changed, or {@code null} for a full update
+     */
+    private void scheduleCacheUpdate(@Nullable Pair<String, Integer> app) {
+        if (app == null) {
+            synchronized (cacheHandler) {
+                requestScopeCacheTime = requestModuleCacheTime = SystemClock.elapsedRealtime();
+            }
+        }
+        cacheUpdates.request(app);
+    }
+
+    private void runCacheUpdates(boolean full, List<Pair<String, Integer>> apps) {
+        if (full) {
+            // covers the pending apps as well
+            cacheModules();
+        } else {
+            apps.forEach(app -> cacheAppScope(app.first, app.second));
         }
     }
 
@@ -198,6 +326,7 @@ public class ConfigManager {
     }
 
     public List<Module> getModulesForSystemServer() {
+        List<Module> result = new ArrayList<>();
         List<Module> modules = new LinkedList<>();
         try (Cursor cursor = db.query("scope INNER JOIN modules ON scope.mid = modules.mid", new String[]{"module_pkg_name", "apk_path"}, "app_pkg_name=? AND enabled=1", new String[]{"android"}, null, null, null)) {
             int apkPathIdx = cursor.getColumnIndex("apk_path");
@@ -207,23 +336,66 @@ public class ConfigManager {
                 module.apkPath = cursor.getString(apkPathIdx);
                 module.packageName = cursor.getString(pkgNameIdx);
                 module.appId = -1;
-                modules.add(module);
+                // already prepared for the apps, no need to load it again
+                var cached = cachedModule.get(module.packageName);
+                if (cached != null && cached.file != null && module.apkPath.equals(cached.apkPath)) {
+                    result.add(cached);
+                } else {
+                    modules.add(module);
+                }
             }
         }
-        return modules.parallelStream().filter(m -> {
-            var file = ConfigFileManager.loadModule(m.apkPath, dexObfuscate);
+        var files = prepareModules(modules);
+        for (int i = 0; i < modules.size(); i++) {
+            var m = modules.get(i);
+            var file = files.get(i);
             if (file == null) {
                 Log.w(ServiceManager.TAG, "Can not load " + m.apkPath + ", skip!");
-                return false;
+                continue;
             }
             m.file = file;
-            cachedModule.putIfAbsent(m.packageName, m);
-            return true;
-        }).collect(Collectors.toList());
+            var cached = cachedModule.putIfAbsent(m.packageName, m);
+            if (cached != null && cached.file != null && m.apkPath.equals(cached.apkPath)) {
+                // lost the race against cacheModules, keep its copy
+                file.preLoadedDexes.forEach(ConfigFileManager::closeDex);
+                m = cached;
+            }
+            result.add(m);
+        }
+        return result;
+    }
+
+    /**
+     * Whether the module is loaded into the process. Only looks at the cached scopes, or at
+     * the database for system server, and never loads any module.
+     */
+    public boolean isModuleLoadedInto(String moduleName, String processName, int uid) {
+        if (uid == 1000 && processName.equals("android")) {
+            try (Cursor cursor = db.query("scope INNER JOIN modules ON scope.mid = modules.mid", new String[]{"module_pkg_name"},
+                    "app_pkg_name=? AND enabled=1 AND module_pkg_name=?", new String[]{"android", moduleName}, null, null, null, "1")) {
+                return cursor != null && cursor.moveToNext();
+            }
+        }
+        if (isManager(uid)) return false;
+        var modules = cachedScope.get(new ProcessScope(processName, uid));
+        return modules != null && modules.stream().anyMatch(m -> m.packageName.equals(moduleName));
+    }
+
+    /**
+     * Prepares the payloads of the given modules on {@link #modulePreparer}, so that a large
+     * module does not hold up the others. The result is in the same order as {@code modules},
+     * with {@code null} for modules that failed to load.
+     */
+    private List<PreLoadedApk> prepareModules(List<Module> modules) {
+        final var obfuscate = dexObfuscate;
+        return modulePreparer.prepare(modules, m -> ConfigFileManager.loadModule(m.apkPath, obfuscate),
+                (m, e) -> Log.e(ServiceManager.TAG, "prepare module " + m.packageName, e));
     }
 
     private synchronized void updateConfig() {
         Map<String, Object> config = getModulePrefs("lspd", 0, "config");
+        // missing values, written in one transaction
+        var defaults = new HashMap<String, Object>();
 
         Object bool = config.get("enable_verbose_log");
         verboseLog = bool == null || (boolean) bool;
@@ -233,19 +405,23 @@ public class ConfigManager {
 
         bool = config.get("enable_auto_add_shortcut");
         if (bool == null) {
-            updateModulePrefs("lspd", 0, "config", "enable_auto_add_shortcut", true);
+            defaults.put("enable_auto_add_shortcut", true);
             bool = true;
         }
         autoAddShortcut = (boolean) bool;
 
+        Object budget = config.get("callback_budget_ms");
+        callbackBudget = budget instanceof Number ? ((Number) budget).longValue() : DEFAULT_CALLBACK_BUDGET;
+
         // Don't migrate to ConfigFileManager, as XSharedPreferences will be restored soon
         String string = (String) config.get("misc_path");
         if (string == null) {
             miscPath = "/data/misc/" + UUID.randomUUID().toString();
-            updateModulePrefs("lspd", 0, "config", "misc_path", miscPath);
+            defaults.put("misc_path", miscPath);
         } else {
             miscPath = string;
         }
+        if (!defaults.isEmpty()) updateModulePrefs("lspd", 0, "config", defaults);
         try {
             Path prefs = Paths.get(miscPath);
             var perms = PosixFilePermissions.fromString("rwx--x--x");
@@ -263,6 +439,7 @@ public class ConfigManager {
     public synchronized void updateManager(boolean uninstalled) {
         if (uninstalled) {
             managerUid = -1;
+            publishScopeTable();
             return;
         }
         if (!PackageService.isAlive()) return;
@@ -274,6 +451,7 @@ public class ConfigManager {
                 managerUid = -1;
                 Log.i(ServiceManager.TAG, "manager is not installed");
             }
+            publishScopeTable();
         } catch (RemoteException ignored) {
         }
     }
@@ -300,8 +478,14 @@ public class ConfigManager {
         HandlerThread cacheThread = new HandlerThread("cache");
         cacheThread.start();
         cacheHandler = new Handler(cacheThread.getLooper());
+        cacheUpdates = new UpdateCoalescer<>(CACHE_UPDATE_WINDOW, CACHE_UPDATE_MAX_DELAY,
+                SystemClock::uptimeMillis, (task, uptimeMillis) -> {
+                    cacheHandler.removeCallbacks(task);
+                    cacheHandler.postAtTime(task, uptimeMillis);
+                }, this::runCacheUpdates);
 
         initDB();
+        compileStatements();
         updateConfig();
         // must ensure cache is valid for later usage
         updateCaches(true);
@@ -309,13 +493,15 @@ public class ConfigManager {
 
 
     private <T> T executeInTransaction(Supplier<T> execution) {
-        try {
-            db.beginTransaction();
-            var res = execution.get();
-            db.setTransactionSuccessful();
-            return res;
-        } finally {
-            db.endTransaction();
+        synchronized (dbLock) {
+            try {
+                db.beginTransaction();
+                var res = execution.get();
+                db.setTransactionSuccessful();
+                return res;
+            } finally {
+                db.endTransaction();
+            }
         }
     }
 
@@ -328,6 +514,8 @@ public class ConfigManager {
 
     private void initDB() {
         try {
+            // readers no longer block the writer, and a commit no longer rewrites the journal
+            db.enableWriteAheadLogging();
             db.setForeignKeyConstraintsEnabled(true);
             switch (db.getVersion()) {
                 case 0:
@@ -369,6 +557,19 @@ public class ConfigManager {
                         db.compileStatement("DROP TABLE old_configs;").execute();
                         db.setVersion(2);
                     });
+                case 2:
+                    executeInTransaction(() -> {
+                        // the primary key of configs already serves lookups by module and user
+                        db.compileStatement("DROP INDEX IF EXISTS configs_idx;").execute();
+                        db.compileStatement("CREATE INDEX IF NOT EXISTS scope_mid_user_idx ON scope (mid, user_id, app_pkg_name);").execute();
+                        db.compileStatement("CREATE INDEX IF NOT EXISTS scope_app_user_idx ON scope (app_pkg_name, user_id, mid);").execute();
+                        db.setVersion(3);
+                    });
+                case 3:
+                    executeInTransaction(() -> {
+                        migrateConfigEncoding();
+                        db.setVersion(4);
+                    });
                 default:
                     break;
             }
@@ -379,6 +580,46 @@ public class ConfigManager {
 
     }
 
+    // re-encodes the java serialized preferences that PreferenceCodec supports
+    private void migrateConfigEncoding() {
+        var update = db.compileStatement("UPDATE configs SET data = ? WHERE module_pkg_name = ? AND user_id = ? AND `group` = ? AND `key` = ?;");
+        try (Cursor cursor = db.query("configs", new String[]{"module_pkg_name", "user_id", "`group`", "`key`", "data"},
+                null, null, null, null, null)) {
+            int moduleIdx = cursor.getColumnIndex("module_pkg_name");
+            int userIdIdx = cursor.getColumnIndex("user_id");
+            int groupIdx = cursor.getColumnIndex("group");
+            int keyIdx = cursor.getColumnIndex("key");
+            int dataIdx = cursor.getColumnIndex("data");
+            while (cursor.moveToNext()) {
+                var data = cursor.getBlob(dataIdx);
+                if (!PreferenceCodec.isLegacy(data)) continue;
+                Object value;
+                try {
+                    value = SerializationUtils.deserialize(data);
+                } catch (Throwable e) {
+                    Log.w(ServiceManager.TAG, "migrate config " + cursor.getString(keyIdx), e);
+                    continue;
+                }
+                if (!PreferenceCodec.canEncode(value)) continue;
+                update.bindBlob(1, PreferenceCodec.encode(value));
+                update.bindString(2, cursor.getString(moduleIdx));
+                update.bindLong(3, cursor.getLong(userIdIdx));
+                update.bindString(4, cursor.getString(groupIdx));
+                update.bindString(5, cursor.getString(keyIdx));
+                update.executeUpdateDelete();
+            }
+        } finally {
+            update.close();
+        }
+    }
+
+    private void compileStatements() {
+        insertScope = db.compileStatement("INSERT OR IGNORE INTO scope (mid, app_pkg_name, user_id) VALUES (?, ?, ?);");
+        deleteScope = db.compileStatement("DELETE FROM scope WHERE mid = ?;");
+        replaceConfig = db.compileStatement("INSERT OR REPLACE INTO configs (module_pkg_name, user_id, `group`, `key`, data) VALUES (?, ?, ?, ?, ?);");
+        deleteConfig = db.compileStatement("DELETE FROM configs WHERE module_pkg_name = ? AND user_id = ? AND `group` = ? AND `key` = ?;");
+    }
+
     private List<ProcessScope> getAssociatedProcesses(Application app) throws RemoteException {
         Pair<Set<String>, Integer> result = PackageService.fetchProcessesWithUid(app);
         List<ProcessScope> processes = new ArrayList<>();
@@ -389,51 +630,194 @@ public class ConfigManager {
     }
 
     private @NonNull
-    Map<String, ConcurrentHashMap<String, Object>> fetchModuleConfig(String name, int user_id) {
-        var config = new ConcurrentHashMap<String, ConcurrentHashMap<String, Object>>();
+    ConcurrentHashMap<String, Object> fetchModulePrefs(PrefsGroup prefsGroup) {
+        var prefs = new ConcurrentHashMap<String, Object>();
 
-        try (Cursor cursor = db.query("configs", new String[]{"`group`", "`key`", "data"},
-                "module_pkg_name = ? and user_id = ?", new String[]{name, String.valueOf(user_id)}, null, null, null)) {
+        try (Cursor cursor = db.query("configs", new String[]{"`key`", "data"},
+                "module_pkg_name = ? and user_id = ? and `group` = ?",
+                new String[]{prefsGroup.moduleName, String.valueOf(prefsGroup.userId), prefsGroup.group}, null, null, null)) {
             if (cursor == null) {
                 Log.e(ServiceManager.TAG, "db cache failed");
-                return config;
+                return prefs;
             }
-            int groupIdx = cursor.getColumnIndex("group");
             int keyIdx = cursor.getColumnIndex("key");
             int dataIdx = cursor.getColumnIndex("data");
             while (cursor.moveToNext()) {
-                var group = cursor.getString(groupIdx);
                 var key = cursor.getString(keyIdx);
                 var data = cursor.getBlob(dataIdx);
-                var object = SerializationUtils.deserialize(data);
+                var object = PreferenceCodec.decode(data);
                 if (object == null) continue;
-                config.computeIfAbsent(group, g -> new ConcurrentHashMap<>()).put(key, object);
+                prefs.put(key, object);
             }
         }
-        return config;
+        return prefs;
     }
 
     public void updateModulePrefs(String moduleName, int userId, String group, String key, Object value) {
-        var config = cachedConfig.computeIfAbsent(new Pair<>(moduleName, userId), module -> fetchModuleConfig(module.first, module.second));
-        var prefs = config.computeIfAbsent(group, g -> new ConcurrentHashMap<>());
-        if (value instanceof Serializable) {
-            prefs.put(key, value);
-            var values = new ContentValues();
-            values.put("`group`", group);
-            values.put("`key`", key);
-            values.put("data", SerializationUtils.serialize((Serializable) value));
-            values.put("module_pkg_name", moduleName);
-            values.put("user_id", String.valueOf(userId));
-            db.insertWithOnConflict("configs", null, values, SQLiteDatabase.CONFLICT_REPLACE);
-        } else {
-            prefs.remove(key);
-            db.delete("configs", "module_pkg_name=? and user_id=? and `group`=? and `key`=?", new String[]{moduleName, String.valueOf(userId), group, key});
+        updateModulePrefs(moduleName, userId, group, Collections.singletonMap(key, value));
+    }
+
+    /**
+     * Applies all changes of a group in one transaction, a value that is not
+     * {@link Serializable} (e.g. {@code null}) removes its key.
+     */
+    public void updateModulePrefs(String moduleName, int userId, String group, Map<String, Object> changes) {
+        executeInTransaction(() -> {
+            for (var change : changes.entrySet()) {
+                var key = change.getKey();
+                var value = change.getValue();
+                if (value instanceof Serializable) {
+                    replaceConfig.bindString(1, moduleName);
+                    replaceConfig.bindLong(2, userId);
+                    replaceConfig.bindString(3, group);
+                    replaceConfig.bindString(4, key);
+                    replaceConfig.bindBlob(5, PreferenceCodec.canEncode(value) ?
+                            PreferenceCodec.encode(value) : SerializationUtils.serialize((Serializable) value));
+                    replaceConfig.executeInsert();
+                } else {
+                    deleteConfig.bindString(1, moduleName);
+                    deleteConfig.bindLong(2, userId);
+                    deleteConfig.bindString(3, group);
+                    deleteConfig.bindString(4, key);
+                    deleteConfig.executeUpdateDelete();
+                }
+            }
+        });
+        var prefsGroup = new PrefsGroup(moduleName, userId, group);
+        // the cache and the subscribers are updated together, see registerRemotePrefs
+        synchronized (remotePrefsCallbacks) {
+            ConcurrentHashMap<String, Object> prefs;
+            synchronized (cachedConfig) {
+                // not cached, the next read fetches the new values
+                prefs = cachedConfig.get(prefsGroup);
+            }
+            if (prefs != null) {
+                for (var change : changes.entrySet()) {
+                    if (change.getValue() instanceof Serializable) {
+                        prefs.put(change.getKey(), change.getValue());
+                    } else {
+                        prefs.remove(change.getKey());
+                    }
+                }
+            }
+            var callbacks = remotePrefsCallbacks.get(prefsGroup);
+            if (callbacks != null) {
+                notifyRemotePrefs(new ArrayList<>(callbacks.values()), changes);
+            }
+        }
+    }
+
+    /**
+     * Subscribes the callback to the changes of a group.
+     *
+     * @return the current values of the group, the callback receives every later change
+     */
+    public HashMap<String, Object> registerRemotePrefs(String moduleName, int userId, String group,
+                                                       IXRemotePreferenceCallback callback) throws RemoteException {
+        var prefsGroup = new PrefsGroup(moduleName, userId, group);
+        var binder = callback.asBinder();
+        synchronized (remotePrefsCallbacks) {
+            var callbacks = remotePrefsCallbacks.computeIfAbsent(prefsGroup, g -> new HashMap<>());
+            if (!callbacks.containsKey(binder)) {
+                binder.linkToDeath(new IBinder.DeathRecipient() {
+                    @Override
+                    public void binderDied() {
+                        binder.unlinkToDeath(this, 0);
+                        synchronized (remotePrefsCallbacks) {
+                            var subscribers = remotePrefsCallbacks.get(prefsGroup);
+                            if (subscribers == null) return;
+                            subscribers.remove(binder);
+                            if (subscribers.isEmpty()) remotePrefsCallbacks.remove(prefsGroup);
+                        }
+                    }
+                }, 0);
+                callbacks.put(binder, callback);
+            }
+            return new HashMap<>(getModulePrefs(moduleName, userId, group));
         }
     }
 
+    // only the changed keys are sent, a key without value in "put" was removed
+    private void notifyRemotePrefs(List<IXRemotePreferenceCallback> callbacks, Map<String, Object> changes) {
+        var diff = new ArrayList<String>(changes.size());
+        var put = new HashMap<String, Object>();
+        for (var change : changes.entrySet()) {
+            diff.add(change.getKey());
+            if (change.getValue() instanceof Serializable) {
+                put.put(change.getKey(), change.getValue());
+            }
+        }
+        var bundle = new Bundle();
+        bundle.putStringArrayList("diff", diff);
+        bundle.putSerializable("put", put);
+        remotePrefsNotifier.execute(() -> {
+            for (var callback : callbacks) {
+                try {
+                    callback.onUpdate(bundle);
+                } catch (RemoteException e) {
+                    Log.w(TAG, "notify remote prefs", e);
+                }
+            }
+        });
+    }
+
     public ConcurrentHashMap<String, Object> getModulePrefs(String moduleName, int userId, String group) {
-        var config = cachedConfig.computeIfAbsent(new Pair<>(moduleName, userId), module -> fetchModuleConfig(module.first, module.second));
-        return config.getOrDefault(group, new ConcurrentHashMap<>());
+        var key = new PrefsGroup(moduleName, userId, group);
+        synchronized (cachedConfig) {
+            var prefs = cachedConfig.get(key);
+            if (prefs != null) {
+                prefsCacheHits.incrementAndGet();
+                return prefs;
+            }
+            prefsCacheMisses.incrementAndGet();
+            // fetched under the lock, so that a concurrent update can not be overwritten by older values
+            prefs = fetchModulePrefs(key);
+            cachedConfig.put(key, prefs);
+            return prefs;
+        }
+    }
+
+    private void invalidateModulePrefs(String moduleName) {
+        synchronized (cachedConfig) {
+            cachedConfig.keySet().removeIf(key -> key.moduleName.equals(moduleName));
+        }
+    }
+
+    // changes whenever cached modules or scopes may have been replaced
+    public long getCacheGeneration() {
+        return cacheGeneration;
+    }
+
+    /**
+     * Must be called before fetching a module list that is written to a parcel, and
+     * {@link #endModulesWrite} once it is written. The dexes of modules replaced meanwhile stay
+     * open until then.
+     */
+    public void beginModulesWrite() {
+        synchronized (retiredDexes) {
+            moduleListWriters++;
+        }
+    }
+
+    public void endModulesWrite() {
+        List<PreLoadedDex> toClose;
+        synchronized (retiredDexes) {
+            if (--moduleListWriters > 0 || retiredDexes.isEmpty()) return;
+            toClose = new ArrayList<>(retiredDexes);
+            retiredDexes.clear();
+        }
+        toClose.forEach(ConfigFileManager::closeDex);
+    }
+
+    // the modules must already be replaced in cachedModule, so no new writer can get them
+    private void retireDexes(Collection<PreLoadedDex> dexes) {
+        synchronized (retiredDexes) {
+            if (moduleListWriters > 0) {
+                retiredDexes.addAll(dexes);
+                return;
+            }
+        }
+        dexes.forEach(ConfigFileManager::closeDex);
     }
 
     private synchronized void clearCache() {
@@ -441,8 +825,18 @@ public class ConfigManager {
             lastScopeCacheTime = 0;
             lastModuleCacheTime = 0;
         }
+        cacheGeneration++;
+        var dexes = new ArrayList<PreLoadedDex>();
+        cachedModule.values().forEach(m -> {
+            if (m.file != null) dexes.addAll(m.file.preLoadedDexes);
+        });
         cachedModule.clear();
         cachedScope.clear();
+        scopesByUid.clear();
+        appScopes.clear();
+        processApps.clear();
+        invalidateScopeTable();
+        retireDexes(dexes);
     }
 
     private synchronized void cacheModules() {
@@ -452,7 +846,7 @@ public class ConfigManager {
             if (lastModuleCacheTime >= requestModuleCacheTime) return;
             else lastModuleCacheTime = SystemClock.elapsedRealtime();
         }
-        Set<SharedMemory> toClose = ConcurrentHashMap.newKeySet();
+        Set<PreLoadedDex> toClose = ConcurrentHashMap.newKeySet();
         try (Cursor cursor = db.query(true, "modules", new String[]{"module_pkg_name", "apk_path"},
                 "enabled = 1", null, null, null, null, null)) {
             if (cursor == null) {
@@ -482,35 +876,41 @@ public class ConfigManager {
                 modules.add(module);
             }
 
-            modules.stream().parallel().filter(m -> {
+            try {
+                PackageService.fillSnapshot();
+            } catch (Throwable e) {
+                Log.w(ServiceManager.TAG, "fill package snapshot", e);
+            }
+            // served by the package snapshot, no need to spread the lookups over threads
+            var modulesToLoad = modules.stream().filter(m -> {
                 var oldModule = cachedModule.get(m.packageName);
-                PackageInfo pkgInfo = null;
+                ApplicationInfo applicationInfo = null;
                 try {
-                    pkgInfo = PackageService.getPackageInfoFromAllUsers(m.packageName, MATCH_ALL_FLAGS).values().stream().findFirst().orElse(null);
+                    applicationInfo = PackageService.getApplicationInfoFromAnyUser(m.packageName);
                 } catch (Throwable e) {
                     Log.w(ServiceManager.TAG, "Get package info of " + m.packageName, e);
                 }
-                if (pkgInfo == null || pkgInfo.applicationInfo == null) {
+                if (applicationInfo == null) {
                     Log.w(ServiceManager.TAG, "Failed to find package info of " + m.packageName);
                     obsoleteModules.add(m.packageName);
                     return false;
                 }
 
                 if (oldModule != null &&
-                        pkgInfo.applicationInfo.sourceDir != null &&
+                        applicationInfo.sourceDir != null &&
                         m.apkPath != null && oldModule.apkPath != null &&
                         existsInGlobalNamespace(m.apkPath) &&
                         Objects.equals(m.apkPath, oldModule.apkPath) &&
-                        Objects.equals(new File(pkgInfo.applicationInfo.sourceDir).getParent(), new File(m.apkPath).getParent())) {
+                        Objects.equals(new File(applicationInfo.sourceDir).getParent(), new File(m.apkPath).getParent())) {
                     if (oldModule.appId != -1) {
                         Log.d(ServiceManager.TAG, m.packageName + " did not change, skip caching it");
                     } else {
                         // cache from system server, keep it and set only the appId
-                        oldModule.appId = pkgInfo.applicationInfo.uid;
+                        oldModule.appId = applicationInfo.uid;
                     }
                     return false;
                 }
-                m.apkPath = getModuleApkPath(pkgInfo.applicationInfo);
+                m.apkPath = getModuleApkPath(applicationInfo);
                 if (m.apkPath == null) {
                     Log.w(ServiceManager.TAG, "Failed to find path of " + m.packageName);
                     obsoleteModules.add(m.packageName);
@@ -518,18 +918,25 @@ public class ConfigManager {
                 } else {
                     obsoletePaths.put(m.packageName, m.apkPath);
                 }
-                m.appId = pkgInfo.applicationInfo.uid;
+                m.appId = applicationInfo.uid;
                 return true;
-            }).forEach(m -> {
-                var file = ConfigFileManager.loadModule(m.apkPath, dexObfuscate);
+            }).collect(Collectors.toList());
+
+            var files = prepareModules(modulesToLoad);
+            for (int i = 0; i < modulesToLoad.size(); i++) {
+                var m = modulesToLoad.get(i);
+                var file = files.get(i);
                 if (file == null) {
                     Log.w(ServiceManager.TAG, "failed to load module " + m.packageName);
                     obsoleteModules.add(m.packageName);
-                    return;
+                    continue;
                 }
                 m.file = file;
-                cachedModule.put(m.packageName, m);
-            });
+                var replaced = cachedModule.put(m.packageName, m);
+                if (replaced != null && replaced.file != null) {
+                    toClose.addAll(replaced.file.preLoadedDexes);
+                }
+            }
 
             if (PackageService.isAlive()) {
                 obsoleteModules.forEach(this::removeModuleWithoutCache);
@@ -537,15 +944,18 @@ public class ConfigManager {
             } else {
                 Log.w(ServiceManager.TAG, "pm is dead while caching. invalidating...");
                 clearCache();
+                retireDexes(toClose);
                 return;
             }
         }
+        ConfigFileManager.pruneModuleCache(cachedModule.values().stream()
+                .map(m -> m.apkPath).collect(Collectors.toList()));
         Log.d(ServiceManager.TAG, "cached modules");
         for (var module : cachedModule.entrySet()) {
             Log.d(ServiceManager.TAG, module.getKey() + " " + module.getValue().apkPath);
         }
         cacheScopes();
-        toClose.forEach(SharedMemory::close);
+        retireDexes(toClose);
     }
 
     private synchronized void cacheScopes() {
@@ -555,7 +965,12 @@ public class ConfigManager {
             if (lastScopeCacheTime >= requestScopeCacheTime) return;
             else lastScopeCacheTime = SystemClock.elapsedRealtime();
         }
+        invalidateScopeTable();
+        cacheGeneration++;
         cachedScope.clear();
+        scopesByUid.clear();
+        appScopes.clear();
+        processApps.clear();
         try (Cursor cursor = db.query("scope INNER JOIN modules ON scope.mid = modules.mid", new String[]{"app_pkg_name", "module_pkg_name", "user_id"},
                 "enabled = 1", null, null, null, null)) {
             int appPkgNameIdx = cursor.getColumnIndex("app_pkg_name");
@@ -565,17 +980,15 @@ public class ConfigManager {
             final var obsoletePackages = new HashSet<Application>();
             final var obsoleteModules = new HashSet<Application>();
             final var moduleAvailability = new HashMap<Pair<String, Integer>, Boolean>();
-            final var cachedProcessScope = new HashMap<Pair<String, Integer>, List<ProcessScope>>();
+            final var appModules = new HashMap<Pair<String, Integer>, List<Module>>();
 
-            final var denylist = new HashSet<>(getDenyListPackages());
             while (cursor.moveToNext()) {
-                Application app = new Application();
-                app.packageName = cursor.getString(appPkgNameIdx);
-                app.userId = cursor.getInt(userIdIdx);
+                var appPackageName = cursor.getString(appPkgNameIdx);
+                var userId = cursor.getInt(userIdIdx);
                 var modulePackageName = cursor.getString(modulePkgNameIdx);
 
                 // check if module is present in this user
-                if (!moduleAvailability.computeIfAbsent(new Pair<>(modulePackageName, app.userId), n -> {
+                if (!moduleAvailability.computeIfAbsent(new Pair<>(modulePackageName, userId), n -> {
                     var available = false;
                     try {
                         available = PackageService.isPackageAvailable(n.first, n.second, true) && cachedModule.containsKey(modulePackageName);
@@ -585,55 +998,49 @@ public class ConfigManager {
                     if (!available) {
                         var obsoleteModule = new Application();
                         obsoleteModule.packageName = modulePackageName;
-                        obsoleteModule.userId = app.userId;
+                        obsoleteModule.userId = userId;
                         obsoleteModules.add(obsoleteModule);
                     }
                     return available;
                 })) continue;
 
                 // system server always loads database
-                if (app.packageName.equals("android")) continue;
+                if (appPackageName.equals("android")) continue;
 
+                appModules.computeIfAbsent(new Pair<>(appPackageName, userId), k -> new ArrayList<>())
+                        .add(cachedModule.get(modulePackageName));
+            }
+
+            final var denylist = new HashSet<>(getDenyListPackages());
+            for (var entry : appModules.entrySet()) {
+                Application app = new Application();
+                app.packageName = entry.getKey().first;
+                app.userId = entry.getKey().second;
                 try {
-                    List<ProcessScope> processesScope = cachedProcessScope.computeIfAbsent(new Pair<>(app.packageName, app.userId), (k) -> {
-                        try {
-                            if (denylist.contains(app.packageName))
-                                Log.w(ServiceManager.TAG, app.packageName + " is on denylist. It may not take effect.");
-                            return getAssociatedProcesses(app);
-                        } catch (RemoteException e) {
-                            return Collections.emptyList();
-                        }
-                    });
-                    if (processesScope.isEmpty()) {
+                    if (denylist.contains(app.packageName))
+                        Log.w(ServiceManager.TAG, app.packageName + " is on denylist. It may not take effect.");
+                    List<ProcessScope> processes;
+                    try {
+                        processes = getAssociatedProcesses(app);
+                    } catch (RemoteException e) {
+                        processes = Collections.emptyList();
+                    }
+                    if (processes.isEmpty()) {
                         obsoletePackages.add(app);
                         continue;
                     }
-                    var module = cachedModule.get(modulePackageName);
-                    assert module != null;
-                    for (ProcessScope processScope : processesScope) {
-                        cachedScope.computeIfAbsent(processScope,
-                                ignored -> new LinkedList<>()).add(module);
-                        // Always allow the module to inject itself
-                        if (modulePackageName.equals(app.packageName)) {
-                            var appId = processScope.uid % PER_USER_RANGE;
-                            for (var user : UserService.getUsers()) {
-                                var moduleUid = user.id * PER_USER_RANGE + appId;
-                                if (moduleUid == processScope.uid) continue; // skip duplicate
-                                var moduleSelf = new ProcessScope(processScope.processName, moduleUid);
-                                cachedScope.computeIfAbsent(moduleSelf,
-                                        ignored -> new LinkedList<>()).add(module);
-                            }
-                        }
-                    }
+                    putAppScope(entry.getKey(), scopeOf(app.packageName, entry.getValue(), processes));
                 } catch (RemoteException e) {
                     Log.e(ServiceManager.TAG, Log.getStackTraceString(e));
                 }
             }
             if (PackageService.isAlive()) {
-                for (Application obsoletePackage : obsoletePackages) {
-                    Log.d(ServiceManager.TAG, "removing obsolete package: " + obsoletePackage.packageName + "/" + obsoletePackage.userId);
-                    removeAppWithoutCache(obsoletePackage);
-                }
+                executeInTransaction(() -> {
+                    for (Application obsoletePackage : obsoletePackages) {
+                        Log.d(ServiceManager.TAG, "removing obsolete package: " + obsoletePackage.packageName + "/" + obsoletePackage.userId);
+                        removeAppWithoutCache(obsoletePackage);
+                    }
+                });
                 for (Application obsoleteModule : obsoleteModules) {
                     Log.d(ServiceManager.TAG, "removing obsolete module: " + obsoleteModule.packageName + "/" + obsoleteModule.userId);
                     removeModuleScopeWithoutCache(obsoleteModule);
@@ -649,6 +1056,150 @@ public class ConfigManager {
             Log.d(ServiceManager.TAG, ps.processName + "/" + ps.uid);
             modules.forEach(module -> Log.d(ServiceManager.TAG, "\t" + module.packageName));
         });
+        cacheGeneration++;
+        scopeTableValid = true;
+        publishScopeTable();
+    }
+
+    /**
+     * The part of {@link #cachedScope} an app contributes: each of its processes gets the modules
+     * scoping the app, and a module scoping itself also gets its processes in the other users.
+     */
+    private static Map<ProcessScope, List<Module>> scopeOf(String packageName, List<Module> modules,
+                                                           List<ProcessScope> processes) throws RemoteException {
+        var scope = new HashMap<ProcessScope, List<Module>>();
+        for (var processScope : processes) {
+            scope.computeIfAbsent(processScope, ignored -> new ArrayList<>()).addAll(modules);
+            for (var module : modules) {
+                // Always allow the module to inject itself
+                if (!module.packageName.equals(packageName)) continue;
+                var appId = processScope.uid % PER_USER_RANGE;
+                for (var user : UserService.getUsers()) {
+                    var moduleUid = user.id * PER_USER_RANGE + appId;
+                    if (moduleUid == processScope.uid) continue; // skip duplicate
+                    var moduleSelf = new ProcessScope(processScope.processName, moduleUid);
+                    scope.computeIfAbsent(moduleSelf, ignored -> new ArrayList<>()).add(module);
+                }
+            }
+        }
+        return scope;
+    }
+
+    /**
+     * Replaces what an app contributes to {@link #cachedScope} and recomputes only the processes
+     * it contributed to before or contributes to now.
+     *
+     * @param scope the new contribution, or {@code null} if the app is no longer scoped
+     */
+    private synchronized void putAppScope(Pair<String, Integer> app, @Nullable Map<ProcessScope, List<Module>> scope) {
+        var old = scope == null ? appScopes.remove(app) : appScopes.put(app, scope);
+        var affected = new HashSet<ProcessScope>();
+        if (old != null) affected.addAll(old.keySet());
+        if (scope != null) affected.addAll(scope.keySet());
+        for (var processScope : affected) {
+            var apps = processApps.computeIfAbsent(processScope, ignored -> new HashSet<>());
+            if (scope != null && scope.containsKey(processScope)) {
+                apps.add(app);
+            } else {
+                apps.remove(app);
+            }
+            var modules = new ArrayList<Module>();
+            for (var contributor : apps) {
+                for (var module : appScopes.get(contributor).get(processScope)) {
+                    if (!modules.contains(module)) modules.add(module);
+                }
+            }
+            if (modules.isEmpty()) {
+                processApps.remove(processScope);
+                cachedScope.remove(processScope);
+                scopesByUid.computeIfPresent(processScope.uid, (uid, scopes) -> {
+                    scopes.remove(processScope);
+                    return scopes.isEmpty() ? null : scopes;
+                });
+            } else {
+                cachedScope.put(processScope, modules);
+                scopesByUid.computeIfAbsent(processScope.uid, uid -> ConcurrentHashMap.newKeySet()).add(processScope);
+            }
+        }
+    }
+
+    /**
+     * Updates the cached scope of one app after it was installed, updated or removed for a user,
+     * instead of rebuilding the scope of every app.
+     */
+    private synchronized void cacheAppScope(String packageName, int userId) {
+        // system server always loads database
+        if (packageName.equals("android") || !PackageService.isAlive()) return;
+        synchronized (cacheHandler) {
+            // a pending full rebuild covers this app as well
+            if (lastScopeCacheTime == 0 || lastScopeCacheTime < requestScopeCacheTime) return;
+        }
+        var modules = new ArrayList<Module>();
+        try (Cursor cursor = db.query("scope INNER JOIN modules ON scope.mid = modules.mid", new String[]{"module_pkg_name"},
+                "app_pkg_name = ? AND user_id = ? AND enabled = 1", new String[]{packageName, String.valueOf(userId)}, null, null, null)) {
+            int modulePkgNameIdx = cursor.getColumnIndex("module_pkg_name");
+            while (cursor.moveToNext()) {
+                var module = cachedModule.get(cursor.getString(modulePkgNameIdx));
+                // a module gone from this user is cleaned up by a full rebuild
+                if (module == null || !PackageService.isPackageAvailable(module.packageName, userId, true)) {
+                    rebuildScopes();
+                    return;
+                }
+                modules.add(module);
+            }
+        } catch (RemoteException e) {
+            Log.w(ServiceManager.TAG, "update scope of " + packageName, e);
+            rebuildScopes();
+            return;
+        }
+        var key = new Pair<>(packageName, userId);
+        if (modules.isEmpty() && !appScopes.containsKey(key)) return;
+        Application app = new Application();
+        app.packageName = packageName;
+        app.userId = userId;
+        Map<ProcessScope, List<Module>> scope = null;
+        try {
+            if (!modules.isEmpty()) {
+                var processes = getAssociatedProcesses(app);
+                if (processes.isEmpty()) {
+                    Log.d(ServiceManager.TAG, "removing obsolete package: " + packageName + "/" + userId);
+                    removeAppWithoutCache(app);
+                } else {
+                    scope = scopeOf(packageName, modules, processes);
+                }
+            }
+        } catch (RemoteException e) {
+            Log.w(ServiceManager.TAG, "update scope of " + packageName, e);
+            rebuildScopes();
+            return;
+        }
+        invalidateScopeTable();
+        cacheGeneration++;
+        putAppScope(key, scope);
+        cacheGeneration++;
+        scopeTableValid = true;
+        publishScopeTable();
+        Log.d(ServiceManager.TAG, "cached scope of " + packageName + "/" + userId);
+    }
+
+    private void rebuildScopes() {
+        synchronized (cacheHandler) {
+            requestScopeCacheTime = Math.max(SystemClock.elapsedRealtime(), lastScopeCacheTime + 1);
+        }
+        cacheScopes();
+    }
+
+    private synchronized void invalidateScopeTable() {
+        if (!scopeTableValid) return;
+        scopeTableValid = false;
+        ConfigFileManager.writeScopeTable(null, Collections.emptyList());
+    }
+
+    // mirrors shouldSkipProcess for the zygisk loader
+    private synchronized void publishScopeTable() {
+        if (!scopeTableValid) return;
+        ConfigFileManager.writeScopeTable(cachedScope.keySet(),
+                managerUid == -1 ? Collections.emptyList() : Collections.singletonList(managerUid));
     }
 
     // This is called when a new process created, use the cached result
@@ -662,7 +1213,7 @@ public class ConfigManager {
     }
 
     public boolean isUidHooked(int uid) {
-        return cachedScope.keySet().stream().reduce(false, (p, scope) -> p || scope.uid == uid, Boolean::logicalOr);
+        return scopesByUid.containsKey(uid);
     }
 
     @Nullable
@@ -729,8 +1280,8 @@ public class ConfigManager {
         // force update is because cache is already update to date
         // skip caching again
         if (!force && count > 0) {
-            // Called by oneway binder
-            updateCaches(true);
+            // Called by oneway binder, coalesced with the other package changes
+            updateCaches(false);
             return true;
         }
         return count > 0;
@@ -761,14 +1312,14 @@ public class ConfigManager {
         self.userId = 0;
         scopes.add(self);
         executeInTransaction(() -> {
-            db.delete("scope", "mid = ?", new String[]{String.valueOf(mid)});
+            deleteScope.bindLong(1, mid);
+            deleteScope.executeUpdateDelete();
             for (Application app : scopes) {
                 if (app.packageName.equals("android") && app.userId != 0) continue;
-                ContentValues values = new ContentValues();
-                values.put("mid", mid);
-                values.put("app_pkg_name", app.packageName);
-                values.put("user_id", app.userId);
-                db.insertWithOnConflict("scope", null, values, SQLiteDatabase.CONFLICT_IGNORE);
+                insertScope.bindLong(1, mid);
+                insertScope.bindString(2, app.packageName);
+                insertScope.bindLong(3, app.userId);
+                insertScope.executeInsert();
             }
         });
         // Called by manager, should be async
@@ -808,6 +1359,8 @@ public class ConfigManager {
     private boolean removeModuleWithoutCache(String packageName) {
         if (packageName.equals("lspd")) return false;
         boolean res = executeInTransaction(() -> db.delete("modules", "module_pkg_name = ?", new String[]{packageName}) > 0);
+        // its configs are gone with it
+        invalidateModulePrefs(packageName);
         try {
             for (var user : UserService.getUsers()) {
                 removeModulePrefs(user.id, packageName);
@@ -875,12 +1428,12 @@ public class ConfigManager {
 
     public void updateCache() {
         // Called by oneway binder
-        updateCaches(true);
+        updateCaches(false);
     }
 
-    public void updateAppCache() {
+    public void updateAppCache(String packageName, int userId) {
         // Called by oneway binder
-        cacheScopes();
+        scheduleCacheUpdate(new Pair<>(packageName, userId));
     }
 
     public void setVerboseLog(boolean on) {
@@ -920,6 +1473,55 @@ public class ConfigManager {
         this.autoAddShortcut = on;
     }
 
+    // in milliseconds, 0 if callbacks are not timed
+    public long getCallbackBudget() {
+        return callbackBudget;
+    }
+
+    public void setCallbackBudget(long millis) {
+        millis = Math.max(0, millis);
+        updateModulePrefs("lspd", 0, "config", "callback_budget_ms", millis);
+        this.callbackBudget = millis;
+    }
+
+    public void reportSlowCallback(SlowCallback report) {
+        Log.w(TAG, report.modulePackageName + " took " + report.durationMillis + "ms in " +
+                report.callback + " of " + report.processName + " (user " + report.userId + ")");
+        var key = new Pair<>(report.modulePackageName, report.processName);
+        synchronized (slowCallbacks) {
+            var last = slowCallbacks.get(key);
+            if (last != null && last.durationMillis >= report.durationMillis) return;
+            slowCallbacks.remove(key);
+            slowCallbacks.put(key, report);
+            var it = slowCallbacks.values().iterator();
+            while (slowCallbacks.size() > MAX_SLOW_CALLBACKS) {
+                it.next();
+                it.remove();
+            }
+        }
+    }
+
+    public void reportStartupTrace(String processName, String owner, String trace) {
+        if (!verboseLog()) return;
+        if (trace.length() > MAX_STARTUP_TRACE_LENGTH) {
+            trace = trace.substring(0, MAX_STARTUP_TRACE_LENGTH) + "...";
+        }
+        var line = "Startup trace of " + processName + (Objects.equals(owner, processName) ? "" : "/" + owner) + ": " + trace;
+        Log.d(TAG, line);
+        synchronized (startupTraces) {
+            startupTraces.addLast(System.currentTimeMillis() + " " + line);
+            while (startupTraces.size() > MAX_STARTUP_TRACES) {
+                startupTraces.removeFirst();
+            }
+        }
+    }
+
+    public List<SlowCallback> getSlowCallbacks() {
+        synchronized (slowCallbacks) {
+            return new ArrayList<>(slowCallbacks.values());
+        }
+    }
+
     public ParcelFileDescriptor getManagerApk() {
         try {
             return ConfigFileManager.getManagerApk();
@@ -1080,6 +1682,29 @@ public class ConfigManager {
         os.closeEntry();
     }
 
+    public void exportStartupTraces(ZipOutputStream os) throws IOException {
+        var sb = new StringBuilder();
+        synchronized (startupTraces) {
+            startupTraces.forEach(line -> sb.append(line).append('\n'));
+        }
+        os.putNextEntry(new ZipEntry("startup_traces.txt"));
+        os.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+        os.closeEntry();
+    }
+
+    public void exportPrefsCacheStats(ZipOutputStream os) throws IOException {
+        int size;
+        synchronized (cachedConfig) {
+            size = cachedConfig.size();
+        }
+        os.putNextEntry(new ZipEntry("prefs_cache.txt"));
+        os.write(("groups: " + size + "/" + MAX_CACHED_PREFS_GROUPS + "\n" +
+                "hits: " + prefsCacheHits.get() + "\n" +
+                "misses: " + prefsCacheMisses.get() + "\n" +
+                "evictions: " + prefsCacheEvictions.get() + "\n").getBytes(StandardCharsets.UTF_8));
+        os.closeEntry();
+    }
+
     synchronized SharedMemory getPreloadDex() {
         return ConfigFileManager.getPreloadDex(dexObfuscate);
     }
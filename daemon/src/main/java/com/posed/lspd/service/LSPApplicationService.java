@@ -28,21 +28,31 @@ import android.util.Log;
 import android.util.Pair;
 
 import com.posed.lspd.models.Module;
+import com.posed.lspd.models.SlowCallback;
+import com.posed.lspd.util.PreferenceCodec;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 import androidx.annotation.NonNull;
+import io.github.xposed.xposedservice.IXRemotePreferenceCallback;
 
 import static com.posed.lspd.service.ServiceManager.TAG;
 
 public class LSPApplicationService extends ILSPApplicationService.Stub {
     final static int DEX_TRANSACTION_CODE = 1310096052;
     final static int OBFUSCATION_MAP_TRANSACTION_CODE = 724533732;
+    // dex, obfuscation map, module list and prefs path in one reply
+    final static int BOOTSTRAP_TRANSACTION_CODE = 1112494924;
     // key: <uid, pid>
     private final static Map<Pair<Integer, Integer>, ProcessInfo> processes = new ConcurrentHashMap<>();
+    // marshalled module lists, shared by the processes that get the same modules
+    private final Map<List<Module>, Parcel> modulesParcels = new HashMap<>();
+    private long modulesParcelsGeneration = -1;
 
     static class ProcessInfo implements IBinder.DeathRecipient {
         int uid;
@@ -84,28 +94,126 @@ public class LSPApplicationService extends ILSPApplicationService.Stub {
         Log.d(TAG, "LSPApplicationService.onTransact: code=" + code);
         switch (code) {
             case DEX_TRANSACTION_CODE: {
-                var shm = ConfigManager.getInstance().getPreloadDex();
-                if (shm == null) return false;
-                // assume that write only a fd
-                shm.writeToParcel(reply, 0);
-                reply.writeLong(shm.getSize());
-                return true;
+                return writeDex(reply);
             }
             case OBFUSCATION_MAP_TRANSACTION_CODE: {
-                var obfuscation = ConfigManager.getInstance().dexObfuscate();
-                var signatures = ObfuscationManager.getSignatures();
-                reply.writeInt(signatures.size() * 2);
-                for (Map.Entry<String, String> entry : signatures.entrySet()) {
-                    reply.writeString(entry.getKey());
-                    // return val = key if obfuscation disabled
-                    reply.writeString(obfuscation ? entry.getValue() : entry.getKey());
-                }
+                writeObfuscationMap(reply);
+                return true;
+            }
+            case BOOTSTRAP_TRANSACTION_CODE: {
+                if (!writeDex(reply)) return false;
+                writeObfuscationMap(reply);
+                writeBootstrap(reply);
+                return true;
+            }
+            case TRANSACTION_getModulesList: {
+                data.enforceInterface(getInterfaceDescriptor());
+                var processInfo = ensureRegistered();
+                reply.writeNoException();
+                writeModulesList(reply, processInfo);
                 return true;
             }
         }
         return super.onTransact(code, data, reply, flags);
     }
 
+    private static boolean writeDex(Parcel reply) {
+        var shm = ConfigManager.getInstance().getPreloadDex();
+        if (shm == null) return false;
+        // assume that write only a fd
+        shm.writeToParcel(reply, 0);
+        reply.writeLong(shm.getSize());
+        return true;
+    }
+
+    private static void writeObfuscationMap(Parcel reply) {
+        var obfuscation = ConfigManager.getInstance().dexObfuscate();
+        var signatures = ObfuscationManager.getSignatures();
+        reply.writeInt(signatures.size() * 2);
+        for (Map.Entry<String, String> entry : signatures.entrySet()) {
+            reply.writeString(entry.getKey());
+            // return val = key if obfuscation disabled
+            reply.writeString(obfuscation ? entry.getValue() : entry.getKey());
+        }
+    }
+
+    // the java part of the bootstrap, read by ApplicationServiceClient
+    private void writeBootstrap(Parcel reply) {
+        ProcessInfo processInfo;
+        try {
+            processInfo = ensureRegistered();
+        } catch (RemoteException e) {
+            // e.g. proxied by system server, the client falls back to separate calls
+            reply.writeInt(0);
+            return;
+        }
+        reply.writeInt(1);
+        writeModulesList(reply, processInfo);
+        reply.writeString(ConfigManager.getInstance().getPrefsPath("", processInfo.uid));
+        reply.writeLong(ConfigManager.getInstance().getCallbackBudget());
+        reply.writeInt(ConfigManager.getInstance().verboseLog() ? 1 : 0);
+    }
+
+    // written without PARCELABLE_WRITE_RETURN_VALUE, so the cached descriptors stay open
+    private void writeModulesList(Parcel reply, ProcessInfo processInfo) {
+        ConfigManager.getInstance().beginModulesWrite();
+        try {
+            writeModulesList(reply, processInfo, ConfigManager.getInstance().getCacheGeneration());
+        } finally {
+            ConfigManager.getInstance().endModulesWrite();
+        }
+    }
+
+    // the generation is read first, a rebuild after it makes the list stale and it is then not memoized
+    private void writeModulesList(Parcel reply, ProcessInfo processInfo, long generation) {
+        var modules = new ArrayList<Module>();
+        for (var module : getModulesList(processInfo)) {
+            if (canHandOut(module)) {
+                modules.add(module);
+            } else {
+                Log.w(TAG, "Skipping " + module.packageName + " for " + processInfo + ", its dexes are gone");
+            }
+        }
+        // system server modules are loaded per request, nothing to share
+        if (modules.isEmpty() || processInfo.uid == 1000 && processInfo.processName.equals("android")) {
+            reply.writeTypedList(modules);
+            return;
+        }
+        synchronized (modulesParcels) {
+            if (generation != ConfigManager.getInstance().getCacheGeneration()) {
+                reply.writeTypedList(modules);
+                return;
+            }
+            if (generation != modulesParcelsGeneration) {
+                modulesParcels.values().forEach(Parcel::recycle);
+                modulesParcels.clear();
+                modulesParcelsGeneration = generation;
+            }
+            var parcel = modulesParcels.get(modules);
+            if (parcel == null) {
+                parcel = Parcel.obtain();
+                parcel.writeTypedList(modules);
+                modulesParcels.put(modules, parcel);
+            }
+            reply.appendFrom(parcel, 0, parcel.dataSize());
+        }
+    }
+
+    // a module missing any of its dexes would only fail in the process with missing classes
+    private static boolean canHandOut(Module module) {
+        if (module.file == null) return false;
+        for (var dex : module.file.preLoadedDexes) {
+            if (dex.memory == null) return false;
+            try {
+                // throws once the memory is closed
+                dex.memory.getSize();
+            } catch (IllegalStateException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public boolean registerHeartBeat(int uid, int pid, String processName, IBinder heartBeat) {
         try {
             new ProcessInfo(uid, pid, processName, heartBeat);
@@ -115,9 +223,13 @@ public class LSPApplicationService extends ILSPApplicationService.Stub {
         }
     }
 
+    // binder calls are answered in onTransact by writeModulesList, which shares the memoized reply
     @Override
     public List<Module> getModulesList() throws RemoteException {
-        var processInfo = ensureRegistered();
+        return getModulesList(ensureRegistered());
+    }
+
+    private List<Module> getModulesList(ProcessInfo processInfo) {
         if (processInfo.uid == 1000 && processInfo.processName.equals("android")) {
             return ConfigManager.getInstance().getModulesForSystemServer();
         }
@@ -133,9 +245,57 @@ public class LSPApplicationService extends ILSPApplicationService.Stub {
     }
 
     @Override
-    public Bundle requestRemotePreference(String packageName, int userId, IBinder callback) throws RemoteException {
-        ensureRegistered();
-        return null;
+    public Bundle requestRemotePreference(String packageName, int userId, String group, IBinder callback) throws RemoteException {
+        var processInfo = ensureRegistered();
+        if (packageName == null || group == null || callback == null) return null;
+        // the module itself, or a process it is loaded into, of the same user
+        var isSystemServer = processInfo.uid == 1000 && processInfo.processName.equals("android");
+        if (!isSystemServer && userId != processInfo.uid / PackageService.PER_USER_RANGE) {
+            Log.w(TAG, processInfo + " requested prefs of " + packageName + " for user " + userId);
+            return null;
+        }
+        if (!ConfigManager.getInstance().isModule(processInfo.uid, packageName) &&
+                !ConfigManager.getInstance().isModuleLoadedInto(packageName, processInfo.processName, processInfo.uid)) {
+            Log.w(TAG, processInfo + " requested prefs of unknown module " + packageName);
+            return null;
+        }
+        var prefs = ConfigManager.getInstance().registerRemotePrefs(packageName, userId, group,
+                IXRemotePreferenceCallback.Stub.asInterface(callback));
+        var bundle = new Bundle();
+        bundle.putSerializable("map", prefs);
+        return bundle;
+    }
+
+    // same format as the pushed updates, see ConfigManager.notifyRemotePrefs
+    @Override
+    public boolean updateRemotePreference(String packageName, int userId, String group, Bundle changes) throws RemoteException {
+        var processInfo = ensureRegistered();
+        if (packageName == null || group == null || changes == null) return false;
+        // only the module itself writes, the processes it is loaded into only read
+        if (userId != processInfo.uid / PackageService.PER_USER_RANGE ||
+                !ConfigManager.getInstance().isModule(processInfo.uid, packageName)) {
+            Log.w(TAG, processInfo + " tried to write prefs of " + packageName + " for user " + userId);
+            return false;
+        }
+        var update = new HashMap<String, Object>();
+        try {
+            var diff = changes.getStringArrayList("diff");
+            var put = (Map<?, ?>) changes.getSerializable("put");
+            if (diff == null) return false;
+            for (var key : diff) {
+                var value = put == null ? null : put.get(key);
+                if (key == null || value != null && !PreferenceCodec.canEncode(value)) {
+                    Log.w(TAG, processInfo + " wrote an unsupported pref " + key + " of " + packageName);
+                    return false;
+                }
+                update.put(key, value);
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, processInfo + " wrote malformed prefs of " + packageName, e);
+            return false;
+        }
+        ConfigManager.getInstance().updateModulePrefs(packageName, userId, group, update);
+        return true;
     }
 
     @Override
@@ -157,6 +317,43 @@ public class LSPApplicationService extends ILSPApplicationService.Stub {
         return ConfigManager.getInstance().getManagerApk();
     }
 
+    @Override
+    public long getCallbackBudget() throws RemoteException {
+        ensureRegistered();
+        return ConfigManager.getInstance().getCallbackBudget();
+    }
+
+    @Override
+    public void reportSlowCallback(String modulePackageName, String callback, long durationMillis) throws RemoteException {
+        var processInfo = ensureRegistered();
+        // only modules loaded into the reporting process can be blamed
+        if (!ConfigManager.getInstance().isModuleLoadedInto(modulePackageName, processInfo.processName, processInfo.uid)) {
+            Log.w(TAG, processInfo + " reported unknown module " + modulePackageName);
+            return;
+        }
+        var report = new SlowCallback();
+        report.modulePackageName = modulePackageName;
+        report.processName = processInfo.processName;
+        report.userId = processInfo.uid / PackageService.PER_USER_RANGE;
+        report.callback = callback;
+        report.durationMillis = durationMillis;
+        report.timestamp = System.currentTimeMillis();
+        ConfigManager.getInstance().reportSlowCallback(report);
+    }
+
+    @Override
+    public boolean isVerboseLog() throws RemoteException {
+        ensureRegistered();
+        return ConfigManager.getInstance().verboseLog();
+    }
+
+    @Override
+    public void reportStartupTrace(String owner, String trace) throws RemoteException {
+        var processInfo = ensureRegistered();
+        if (trace == null) return;
+        ConfigManager.getInstance().reportStartupTrace(processInfo.processName, owner, trace);
+    }
+
     public boolean hasRegister(int uid, int pid) {
         return processes.containsKey(new Pair<>(uid, pid));
     }
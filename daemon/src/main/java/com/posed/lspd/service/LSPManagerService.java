@@ -61,6 +61,7 @@ import com.posed.daemon.BuildConfig;
 import com.posed.daemon.R;
 import com.posed.lspd.ILSPManagerService;
 import com.posed.lspd.models.Application;
+import com.posed.lspd.models.SlowCallback;
 import com.posed.lspd.models.UserInfo;
 import com.posed.lspd.util.FakeContext;
 import com.posed.lspd.util.Utils;
@@ -843,4 +844,19 @@ public class LSPManagerService extends ILSPManagerService.Stub {
             return 0;
         }
     }
+
+    @Override
+    public long getCallbackBudget() {
+        return ConfigManager.getInstance().getCallbackBudget();
+    }
+
+    @Override
+    public void setCallbackBudget(long millis) {
+        ConfigManager.getInstance().setCallbackBudget(millis);
+    }
+
+    @Override
+    public List<SlowCallback> getSlowCallbacks() {
+        return ConfigManager.getInstance().getSlowCallbacks();
+    }
 }
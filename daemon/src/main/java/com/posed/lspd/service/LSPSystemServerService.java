@@ -111,6 +111,7 @@ public class LSPSystemServerService extends ILSPSystemServerService.Stub impleme
                 }
             case LSPApplicationService.OBFUSCATION_MAP_TRANSACTION_CODE:
             case LSPApplicationService.DEX_TRANSACTION_CODE:
+            case LSPApplicationService.BOOTSTRAP_TRANSACTION_CODE:
                 // Proxy LSP dex transaction to Application Binder
                 return ServiceManager.getApplicationService().onTransact(code, data, reply, flags);
             default:
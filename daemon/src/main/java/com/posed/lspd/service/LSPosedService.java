@@ -87,6 +87,8 @@ public class LSPosedService extends ILSPosedService.Stub {
         if (userId == USER_NULL) userId = uid % PER_USER_RANGE;
         Uri uri = intent.getData();
         String moduleName = (uri != null) ? uri.getSchemeSpecificPart() : ConfigManager.getInstance().getModule(uid);
+        // the cache rebuilds below must not see the old package
+        if (moduleName != null) PackageService.invalidateSnapshot(moduleName);
 
         ApplicationInfo applicationInfo = null;
         if (moduleName != null) {
@@ -133,7 +135,7 @@ public class LSPosedService extends ILSPosedService.Stub {
                     isXposedModule = ConfigManager.getInstance().updateModuleApkPath(moduleName, ConfigManager.getInstance().getModuleApkPath(applicationInfo), false);
                 } else if (ConfigManager.getInstance().isUidHooked(uid)) {
                     // it will automatically remove obsolete app from database
-                    ConfigManager.getInstance().updateAppCache();
+                    ConfigManager.getInstance().updateAppCache(moduleName, uid / PER_USER_RANGE);
                 }
                 broadcastAndShowNotification(moduleName, userId, intent, isXposedModule);
                 break;
@@ -147,7 +149,7 @@ public class LSPosedService extends ILSPosedService.Stub {
                     ConfigManager.getInstance().updateCache();
                 } else if (ConfigManager.getInstance().isUidHooked(uid)) {
                     // it will automatically remove obsolete app from database
-                    ConfigManager.getInstance().updateAppCache();
+                    ConfigManager.getInstance().updateAppCache(moduleName, uid / PER_USER_RANGE);
                 }
                 break;
             }
@@ -191,6 +193,7 @@ public class LSPosedService extends ILSPosedService.Stub {
         if (intent == null) return;
         int uid = intent.getIntExtra(EXTRA_USER_HANDLE, AID_NOBODY);
         if (uid == AID_NOBODY || uid <= 0) return;
+        PackageService.invalidateSnapshot(null);
         try {
             LSPManagerService.broadcastIntent(intent);
         } catch (Throwable e) {
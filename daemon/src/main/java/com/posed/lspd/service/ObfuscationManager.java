@@ -5,9 +5,36 @@ import android.os.SharedMemory;
 import java.util.HashMap;
 
 public class ObfuscationManager {
+    private static boolean signaturesReady = false;
+
     // For module dexes
-    static native SharedMemory obfuscateDex(SharedMemory memory);
+    static SharedMemory obfuscateDex(SharedMemory memory) {
+        ensureSignatures();
+        return nativeObfuscateDex(memory);
+    }
 
     // generates signature
-    static native HashMap<String, String> getSignatures();
+    static HashMap<String, String> getSignatures() {
+        ensureSignatures();
+        return nativeGetSignatures();
+    }
+
+    // a restarted daemon reuses the signatures of this boot, so that cached obfuscated dexes stay valid
+    private static synchronized void ensureSignatures() {
+        if (signaturesReady) return;
+        signaturesReady = true;
+        var stored = ConfigFileManager.loadObfuscationMap();
+        if (stored != null && nativeRestoreSignatures(stored.keySet().toArray(new String[0]),
+                stored.values().toArray(new String[0]))) {
+            return;
+        }
+        ConfigFileManager.storeObfuscationMap(nativeGetSignatures());
+    }
+
+    private static native SharedMemory nativeObfuscateDex(SharedMemory memory);
+
+    private static native HashMap<String, String> nativeGetSignatures();
+
+    // false if the signatures are already in use or do not match the built-in ones
+    private static native boolean nativeRestoreSignatures(String[] originals, String[] replacements);
 }
@@ -23,6 +23,7 @@ import android.content.IIntentReceiver;
 import android.content.IIntentSender;
 import android.content.Intent;
 import android.content.IntentSender;
+import android.content.pm.ActivityInfo;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.ComponentInfo;
 import android.content.pm.IPackageManager;
@@ -52,10 +53,12 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.stream.Collectors;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import rikka.parcelablelist.ParcelableListSlice;
 
 import static android.content.pm.ServiceInfo.FLAG_ISOLATED_PROCESS;
@@ -72,6 +75,19 @@ public class PackageService {
     private static IPackageManager pm = null;
     private static IBinder binder = null;
 
+    private static final int SNAPSHOT_FLAGS = PackageManager.MATCH_DISABLED_COMPONENTS | PackageManager.MATCH_DIRECT_BOOT_AWARE | PackageManager.MATCH_DIRECT_BOOT_UNAWARE | PackageManager.MATCH_UNINSTALLED_PACKAGES |
+            PackageManager.GET_ACTIVITIES | PackageManager.GET_SERVICES | PackageManager.GET_RECEIVERS | PackageManager.GET_PROVIDERS;
+    // marks a package the snapshot knows to be missing
+    private static final PackageInfo ABSENT = new PackageInfo();
+    // <package, user> -> application info and processes, filled in bulk and invalidated by package broadcasts
+    private static final Map<Pair<String, Integer>, PackageInfo> snapshot = new ConcurrentHashMap<>();
+    // users whose packages were all fetched, a package missing for them is not installed
+    private static final Set<Integer> snapshotUsers = ConcurrentHashMap.newKeySet();
+    // packages changed since they were fetched
+    private static final Set<Pair<String, Integer>> snapshotStale = ConcurrentHashMap.newKeySet();
+    // bumped by every invalidation, a fetch that overlapped one is not stored
+    private static long snapshotGeneration = 0;
+
     static boolean isAlive() {
         var pm = getPackageManager();
         return pm != null && pm.asBinder().isBinderAlive();
@@ -84,6 +100,7 @@ public class PackageService {
             binder.unlinkToDeath(this, 0);
             binder = null;
             pm = null;
+            invalidateSnapshot(null);
         }
     };
 
@@ -110,6 +127,114 @@ public class PackageService {
         return pm.getPackageInfo(packageName, flags, userId);
     }
 
+    /**
+     * Fetches the packages of every user with one paged query per user, so that the cache rebuilds
+     * that follow are served without a binder call per package.
+     */
+    static synchronized void fillSnapshot() throws RemoteException {
+        IPackageManager pm = getPackageManager();
+        if (pm == null) return;
+        for (var user : UserService.getUsers()) {
+            if (snapshotUsers.contains(user.id)) continue;
+            List<PackageInfo> packages;
+            try {
+                packages = (Build.VERSION.SDK_INT + Build.VERSION.PREVIEW_SDK_INT > Build.VERSION_CODES.S_V2 ? pm.getInstalledPackages((long) SNAPSHOT_FLAGS, user.id) : pm.getInstalledPackages(SNAPSHOT_FLAGS, user.id)).getList();
+            } catch (RemoteException | RuntimeException e) {
+                // packages of this user are then fetched one by one
+                Log.w(com.posed.lspd.service.ServiceManager.TAG, "fill package snapshot of user " + user.id, e);
+                continue;
+            }
+            for (var info : packages) {
+                if (info.applicationInfo == null) continue;
+                var key = new Pair<>(info.packageName, user.id);
+                snapshot.put(key, trim(info));
+                snapshotStale.remove(key);
+            }
+            snapshotUsers.add(user.id);
+        }
+    }
+
+    /**
+     * @param packageName the changed package, or {@code null} to drop the whole snapshot
+     */
+    static synchronized void invalidateSnapshot(@Nullable String packageName) {
+        snapshotGeneration++;
+        if (packageName == null) {
+            snapshotUsers.clear();
+            snapshot.clear();
+            snapshotStale.clear();
+            return;
+        }
+        snapshot.keySet().removeIf(key -> key.first.equals(packageName));
+        for (var userId : snapshotUsers) {
+            snapshotStale.add(new Pair<>(packageName, userId));
+        }
+    }
+
+    // null if the snapshot does not know the package, ABSENT if it knows it is missing
+    private static PackageInfo fromSnapshot(String packageName, int userId) {
+        var key = new Pair<>(packageName, userId);
+        var info = snapshot.get(key);
+        if (info != null) return info;
+        return snapshotUsers.contains(userId) && !snapshotStale.contains(key) ? ABSENT : null;
+    }
+
+    private static synchronized long getSnapshotGeneration() {
+        return snapshotGeneration;
+    }
+
+    /**
+     * @param generation the value of {@link #getSnapshotGeneration} before the info was fetched
+     */
+    private static synchronized void putSnapshot(String packageName, int userId, @Nullable PackageInfo info, long generation) {
+        // the package may have changed while it was fetched
+        if (generation != snapshotGeneration) return;
+        var key = new Pair<>(packageName, userId);
+        var cached = snapshot.get(key);
+        if (info == null || info.applicationInfo == null) {
+            snapshot.put(key, ABSENT);
+        } else if (cached == null || cached == ABSENT || cached.lastUpdateTime <= info.lastUpdateTime) {
+            snapshot.put(key, trim(info));
+        }
+        snapshotStale.remove(key);
+    }
+
+    // keeps what the daemon reads: the application info and one component per process
+    private static PackageInfo trim(PackageInfo info) {
+        var trimmed = new PackageInfo();
+        trimmed.packageName = info.packageName;
+        trimmed.applicationInfo = info.applicationInfo;
+        trimmed.lastUpdateTime = info.lastUpdateTime;
+        trimmed.activities = fetchProcesses(info).stream().map(processName -> {
+            var activity = new ActivityInfo();
+            activity.processName = processName;
+            return activity;
+        }).toArray(ActivityInfo[]::new);
+        return trimmed;
+    }
+
+    private static boolean isInstalled(PackageInfo info) {
+        return (info.applicationInfo.flags & ApplicationInfo.FLAG_INSTALLED) != 0;
+    }
+
+    /**
+     * @return the application info from the first user that knows the package, served by the
+     * snapshot where possible
+     */
+    static @Nullable
+    ApplicationInfo getApplicationInfoFromAnyUser(String packageName) throws RemoteException {
+        for (var user : UserService.getUsers()) {
+            var info = fromSnapshot(packageName, user.id);
+            if (info == null) {
+                info = getPackageInfo(packageName, MATCH_ALL_FLAGS, user.id);
+                if (info != null && info.applicationInfo != null) return info.applicationInfo;
+            } else if (info != ABSENT) {
+                return info.applicationInfo;
+            }
+        }
+        return null;
+    }
+
     public static @NonNull
     Map<Integer, PackageInfo> getPackageInfoFromAllUsers(String packageName, int flags) throws RemoteException {
         IPackageManager pm = getPackageManager();
@@ -192,12 +317,23 @@ public class PackageService {
     }
 
     public static boolean isPackageAvailable(String packageName, int userId, boolean ignoreHidden) throws RemoteException {
+        if (ignoreHidden) {
+            var info = fromSnapshot(packageName, userId);
+            if (info != null) return info != ABSENT && isInstalled(info);
+        }
         return pm.isPackageAvailable(packageName, userId) || (ignoreHidden && pm.getApplicationHiddenSettingAsUser(packageName, userId));
     }
 
     private static PackageInfo getPackageInfoWithComponents(String packageName, int flags, int userId) throws RemoteException {
         IPackageManager pm = getPackageManager();
         if (pm == null) return null;
+        var cached = fromSnapshot(packageName, userId);
+        if (cached != null) {
+            if (cached == ABSENT || (!cached.packageName.equals("android") && (cached.applicationInfo.sourceDir == null || !com.posed.lspd.service.ServiceManager.existsInGlobalNamespace(cached.applicationInfo.sourceDir) || !isInstalled(cached))))
+                return null;
+            return cached;
+        }
+        var generation = getSnapshotGeneration();
         PackageInfo pkgInfo;
         try {
             pkgInfo = getPackageInfo(packageName, flags | PackageManager.GET_ACTIVITIES | PackageManager.GET_SERVICES | PackageManager.GET_RECEIVERS | PackageManager.GET_PROVIDERS, userId);
@@ -225,6 +361,7 @@ public class PackageService {
 
             }
         }
+        if ((flags & MATCH_ALL_FLAGS) == MATCH_ALL_FLAGS) putSnapshot(packageName, userId, pkgInfo, generation);
         if (pkgInfo == null || pkgInfo.applicationInfo == null || (!pkgInfo.packageName.equals("android") && (pkgInfo.applicationInfo.sourceDir == null || !com.posed.lspd.service.ServiceManager.existsInGlobalNamespace(pkgInfo.applicationInfo.sourceDir) || !isPackageAvailable(packageName, userId, true))))
             return null;
         return pkgInfo;
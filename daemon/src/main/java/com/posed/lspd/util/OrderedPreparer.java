@@ -0,0 +1,65 @@
+/*
+ * This file is part of LSPosed.
+ *
+ * LSPosed is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LSPosed is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LSPosed.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (C) 2022 LSPosed Contributors
+ */
+
+package com.posed.lspd.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Loads items on an executor, one future per item, and returns the results in the order of the
+ * items no matter in which order the loads finish.
+ */
+public final class OrderedPreparer<T, R> {
+    private final ExecutorService executor;
+
+    public OrderedPreparer(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * @param onError called on the calling thread for an item whose load threw or was interrupted,
+     *                the result of that item is {@code null}
+     */
+    public List<R> prepare(List<T> items, Function<T, R> loader, BiConsumer<T, Throwable> onError) {
+        var futures = new ArrayList<Future<R>>(items.size());
+        for (var item : items) {
+            futures.add(executor.submit(() -> loader.apply(item)));
+        }
+        var results = new ArrayList<R>(items.size());
+        for (int i = 0; i < futures.size(); i++) {
+            R result = null;
+            try {
+                result = futures.get(i).get();
+            } catch (ExecutionException e) {
+                onError.accept(items.get(i), e.getCause());
+            } catch (InterruptedException e) {
+                onError.accept(items.get(i), e);
+                Thread.currentThread().interrupt();
+            }
+            results.add(result);
+        }
+        return results;
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * This file is part of LSPosed.
+ *
+ * LSPosed is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LSPosed is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LSPosed.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (C) 2022 LSPosed Contributors
+ */
+
+package com.posed.lspd.util;
+
+import org.apache.commons.lang3.SerializationUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Encodes preference values as a version byte, a type tag and a fixed layout payload.
+ * Blobs written with Java serialization start with 0xACED and are still decoded.
+ */
+public final class PreferenceCodec {
+    private static final byte VERSION = 1;
+
+    private static final byte TYPE_BOOLEAN = 1;
+    private static final byte TYPE_INT = 2;
+    private static final byte TYPE_LONG = 3;
+    private static final byte TYPE_FLOAT = 4;
+    private static final byte TYPE_DOUBLE = 5;
+    private static final byte TYPE_STRING = 6;
+    private static final byte TYPE_STRING_SET = 7;
+
+    private PreferenceCodec() {
+    }
+
+    public static boolean canEncode(Object value) {
+        if (value instanceof Set) {
+            for (var item : (Set<?>) value) {
+                if (!(item instanceof String)) return false;
+            }
+            return true;
+        }
+        return value instanceof Boolean || value instanceof Integer || value instanceof Long ||
+                value instanceof Float || value instanceof Double || value instanceof String;
+    }
+
+    // the stream magic of java serialization
+    public static boolean isLegacy(byte[] data) {
+        return data.length >= 2 && data[0] == (byte) 0xAC && data[1] == (byte) 0xED;
+    }
+
+    /**
+     * @throws IllegalArgumentException if {@link #canEncode} is false for the value
+     */
+    public static byte[] encode(Object value) {
+        ByteBuffer buffer;
+        if (value instanceof Boolean) {
+            buffer = header(TYPE_BOOLEAN, 1).put((byte) ((Boolean) value ? 1 : 0));
+        } else if (value instanceof Integer) {
+            buffer = header(TYPE_INT, 4).putInt((Integer) value);
+        } else if (value instanceof Long) {
+            buffer = header(TYPE_LONG, 8).putLong((Long) value);
+        } else if (value instanceof Float) {
+            buffer = header(TYPE_FLOAT, 4).putFloat((Float) value);
+        } else if (value instanceof Double) {
+            buffer = header(TYPE_DOUBLE, 8).putDouble((Double) value);
+        } else if (value instanceof String) {
+            var bytes = ((String) value).getBytes(StandardCharsets.UTF_8);
+            buffer = header(TYPE_STRING, 4 + bytes.length).putInt(bytes.length).put(bytes);
+        } else if (value instanceof Set && canEncode(value)) {
+            var set = (Set<?>) value;
+            var items = new byte[set.size()][];
+            var size = 4;
+            var i = 0;
+            for (var item : set) {
+                items[i] = ((String) item).getBytes(StandardCharsets.UTF_8);
+                size += 4 + items[i++].length;
+            }
+            buffer = header(TYPE_STRING_SET, size).putInt(items.length);
+            for (var item : items) {
+                buffer.putInt(item.length).put(item);
+            }
+        } else {
+            throw new IllegalArgumentException("can not encode " + (value == null ? null : value.getClass()));
+        }
+        return buffer.array();
+    }
+
+    /**
+     * @return the value, or {@code null} if the blob is malformed
+     */
+    public static Object decode(byte[] data) {
+        try {
+            // also throws SerializationException, a RuntimeException, on a broken legacy blob
+            if (isLegacy(data)) {
+                return SerializationUtils.deserialize(data);
+            }
+            if (data.length < 2 || data[0] != VERSION) {
+                Utils.logW("unknown preference version");
+                return null;
+            }
+            var buffer = ByteBuffer.wrap(data, 2, data.length - 2);
+            switch (data[1]) {
+                case TYPE_BOOLEAN:
+                    return buffer.get() != 0;
+                case TYPE_INT:
+                    return buffer.getInt();
+                case TYPE_LONG:
+                    return buffer.getLong();
+                case TYPE_FLOAT:
+                    return buffer.getFloat();
+                case TYPE_DOUBLE:
+                    return buffer.getDouble();
+                case TYPE_STRING:
+                    return getString(buffer);
+                case TYPE_STRING_SET: {
+                    var count = buffer.getInt();
+                    var set = new HashSet<String>(Math.max(16, Math.min(count, buffer.remaining() / 4) * 2));
+                    for (int i = 0; i < count; i++) {
+                        set.add(getString(buffer));
+                    }
+                    return set;
+                }
+                default:
+                    return null;
+            }
+        } catch (RuntimeException e) {
+            Utils.logW("malformed preference", e);
+            return null;
+        }
+    }
+
+    private static ByteBuffer header(byte type, int size) {
+        return ByteBuffer.allocate(2 + size).put(VERSION).put(type);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        var length = buffer.getInt();
+        var string = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return string;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * This file is part of LSPosed.
+ *
+ * LSPosed is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LSPosed is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LSPosed.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (C) 2022 LSPosed Contributors
+ */
+
+package com.posed.lspd.util;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.LongSupplier;
+
+/**
+ * Coalesces update requests, so that a burst of them costs one update. The update runs once no
+ * request came in for the window, but no later than the maximum delay after the first request of
+ * the burst. Requests for the same item within a burst are merged, and a full request covers all
+ * items.
+ */
+public final class UpdateCoalescer<T> {
+    public interface Scheduler {
+        /**
+         * Runs {@code task} at {@code uptimeMillis}, replacing an earlier schedule of it.
+         */
+        void reschedule(Runnable task, long uptimeMillis);
+    }
+
+    public interface Updater<T> {
+        /**
+         * @param items the items requested since the last update, ignored when {@code full}
+         */
+        void update(boolean full, List<T> items);
+    }
+
+    private final long window;
+    private final long maxDelay;
+    private final LongSupplier clock;
+    private final Scheduler scheduler;
+    private final Updater<T> updater;
+    private final Runnable pendingUpdate = this::runPending;
+
+    // guarded by this
+    private boolean fullPending = false;
+    private final Set<T> pendingItems = new LinkedHashSet<>();
+    private long firstRequest = -1;
+
+    /**
+     * @param clock uptime in milliseconds, the same clock the scheduler uses
+     */
+    public UpdateCoalescer(long window, long maxDelay, LongSupplier clock, Scheduler scheduler, Updater<T> updater) {
+        this.window = window;
+        this.maxDelay = maxDelay;
+        this.clock = clock;
+        this.scheduler = scheduler;
+        this.updater = updater;
+    }
+
+    /**
+     * @param item the item to update, or {@code null} for a full update
+     */
+    public synchronized void request(@Nullable T item) {
+        if (item == null) {
+            fullPending = true;
+        } else {
+            pendingItems.add(item);
+        }
+        var now = clock.getAsLong();
+        if (firstRequest < 0) firstRequest = now;
+        scheduler.reschedule(pendingUpdate, Math.min(now + window, firstRequest + maxDelay));
+    }
+
+    private void runPending() {
+        boolean full;
+        List<T> items;
+        synchronized (this) {
+            full = fullPending;
+            items = new ArrayList<>(pendingItems);
+            fullPending = false;
+            pendingItems.clear();
+            firstRequest = -1;
+        }
+        if (!full && items.isEmpty()) return;
+        updater.update(full, items);
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * This file is part of LSPosed.
+ *
+ * LSPosed is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LSPosed is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LSPosed.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (C) 2022 LSPosed Contributors
+ */
+
+#include <algorithm>
+#include <cstring>
+#include <vector>
+#include <zlib.h>
+#include <slicer/dex_utf8.h>
+#include "slicer/reader.h"
+#include "dex_obfuscation.h"
+
+namespace {
+    // SHA-1 as stored in dex::Header::signature, slicer only has it inside its writer
+    void Sha1(const dex::u1 *data, size_t size, dex::u1 *out) {
+        uint32_t h[5] = {0x67452301, 0xEFCDAB89, 0x98BADCFE, 0x10325476, 0xC3D2E1F0};
+        auto rol = [](uint32_t x, int n) { return (x << n) | (x >> (32 - n)); };
+        auto block = [&](const dex::u1 *p) {
+            uint32_t w[80];
+            for (int i = 0; i < 16; i++) {
+                w[i] = uint32_t{p[4 * i]} << 24 | uint32_t{p[4 * i + 1]} << 16 |
+                       uint32_t{p[4 * i + 2]} << 8 | uint32_t{p[4 * i + 3]};
+            }
+            for (int i = 16; i < 80; i++) w[i] = rol(w[i - 3] ^ w[i - 8] ^ w[i - 14] ^ w[i - 16], 1);
+            uint32_t a = h[0], b = h[1], c = h[2], d = h[3], e = h[4];
+            for (int i = 0; i < 80; i++) {
+                uint32_t f, k;
+                if (i < 20) {
+                    f = (b & c) | (~b & d);
+                    k = 0x5A827999;
+                } else if (i < 40) {
+                    f = b ^ c ^ d;
+                    k = 0x6ED9EBA1;
+                } else if (i < 60) {
+                    f = (b & c) | (b & d) | (c & d);
+                    k = 0x8F1BBCDC;
+                } else {
+                    f = b ^ c ^ d;
+                    k = 0xCA62C1D6;
+                }
+                uint32_t t = rol(a, 5) + f + e + k + w[i];
+                e = d;
+                d = c;
+                c = rol(b, 30);
+                b = a;
+                a = t;
+            }
+            h[0] += a;
+            h[1] += b;
+            h[2] += c;
+            h[3] += d;
+            h[4] += e;
+        };
+        size_t full = size & ~size_t{63};
+        for (size_t i = 0; i < full; i += 64) block(data + i);
+        // padding: 0x80, zeros and the length in bits, in one or two blocks
+        dex::u1 tail[128] = {};
+        size_t rest = size - full;
+        memcpy(tail, data + full, rest);
+        tail[rest] = 0x80;
+        size_t tail_size = rest < 56 ? 64 : 128;
+        uint64_t bits = uint64_t{size} * 8;
+        for (int i = 0; i < 8; i++) tail[tail_size - 1 - i] = static_cast<dex::u1>(bits >> (8 * i));
+        block(tail);
+        if (tail_size == 128) block(tail + 64);
+        for (int i = 0; i < 5; i++) {
+            out[4 * i] = static_cast<dex::u1>(h[i] >> 24);
+            out[4 * i + 1] = static_cast<dex::u1>(h[i] >> 16);
+            out[4 * i + 2] = static_cast<dex::u1>(h[i] >> 8);
+            out[4 * i + 3] = static_cast<dex::u1>(h[i]);
+        }
+    }
+
+    void PatchString(char *s, const lspd::Signatures &signatures) {
+        for (const auto &signature: signatures) {
+            if (auto *p = strstr(s, signature.first.c_str())) {
+                // NOLINTNEXTLINE bugprone-not-null-terminated-result
+                memcpy(p, signature.second.c_str(), signature.second.size());
+            }
+        }
+    }
+}  // namespace
+
+namespace lspd {
+    // The replacement keeps the top level package and the letter after it, the rest is random.
+    // Every string that starts with the original then moves as a block, and the block keeps its
+    // place in the sorted string_ids unless the dex has another package sharing that prefix
+    // (e.g. Lcom/d...) that sorts between the original and the replacement. Such a dex has to be
+    // rebuilt, any other can be patched in place.
+    std::string GenerateReplacement(std::string_view original, std::mt19937 &rg) {
+        static auto &chrs = "abcdefghijklmnopqrstuvwxyz"
+                            "ABCDEFGHIJKLMNOPQRSTUVWXYZ";
+        std::uniform_int_distribution<std::string::size_type> pick(0, sizeof(chrs) - 2);
+        std::uniform_int_distribution<std::string::size_type> choose_slash(0, 10);
+
+        size_t length = original.size();
+        auto keep = std::min(original.find('/') + 2, length - 1);
+        std::string out(original.substr(0, keep));
+        out.reserve(length);
+
+        for (size_t i = keep; i < length - 1; i++) {
+            if (choose_slash(rg) > 8 &&                             // 80% alphabet + 20% slashes
+                out[i - 1] != '/' &&                                // slashes could not stick together
+                i != length - 2) {                                  // the last character should not be slash
+                out += "/";
+            } else {
+                out += chrs[pick(rg)];
+            }
+        }
+
+        out += "/";
+        return out;
+    }
+
+    // The replacements have the same length as the originals, so only the sort order of
+    // string_ids can be broken. It is checked on copies of the changed strings before anything
+    // is written, so a dex that has to be rebuilt is left untouched. The signature and the
+    // checksum are updated afterwards.
+    bool ObfuscateDexInPlace(void *dex, size_t size, const Signatures &signatures) {
+        auto *base = reinterpret_cast<dex::u1 *>(dex);
+        if (size < sizeof(dex::Header)) return false;
+        auto *header = reinterpret_cast<dex::Header *>(base);
+        if (header->file_size > size || header->file_size < sizeof(dex::Header) ||
+            header->string_ids_off > size ||
+            header->string_ids_size > (size - header->string_ids_off) / sizeof(dex::StringId)) {
+            return false;
+        }
+        for (const auto &signature: signatures) {
+            if (signature.first.size() != signature.second.size()) return false;
+        }
+        auto *string_ids = reinterpret_cast<const dex::StringId *>(base + header->string_ids_off);
+        std::vector<char *> changed;
+        // the patched form of the previous and the current string, if they are changed
+        std::string prev_patched, patched;
+        const char *prev = nullptr;
+        for (dex::u4 i = 0; i < header->string_ids_size; ++i) {
+            if (string_ids[i].string_data_off >= size) return false;
+            auto *ptr = base + string_ids[i].string_data_off;
+            // skip the utf16 length
+            while (ptr < base + size && (*ptr++ & 0x80));
+            if (ptr >= base + size || !memchr(ptr, 0, base + size - ptr)) return false;
+            auto *s = reinterpret_cast<char *>(ptr);
+            const char *current = s;
+            for (const auto &signature: signatures) {
+                if (strstr(s, signature.first.c_str())) {
+                    patched = s;
+                    PatchString(patched.data(), signatures);
+                    current = patched.c_str();
+                    changed.push_back(s);
+                    break;
+                }
+            }
+            if (prev && dex::Utf8Cmp(prev, current) >= 0) return false;
+            if (current == s) {
+                prev = s;
+            } else {
+                std::swap(prev_patched, patched);
+                prev = prev_patched.c_str();
+            }
+        }
+        for (auto *s: changed) PatchString(s, signatures);
+        // type_ids, proto_ids, field_ids and method_ids are sorted by indices, which did not move
+        constexpr size_t kSignatureSkip = offsetof(dex::Header, signature) + sizeof(header->signature);
+        Sha1(base + kSignatureSkip, header->file_size - kSignatureSkip, header->signature);
+        constexpr size_t kChecksumSkip = offsetof(dex::Header, signature);
+        header->checksum = adler32(adler32(0L, Z_NULL, 0), base + kChecksumSkip,
+                                   header->file_size - kChecksumSkip);
+        return true;
+    }
+
+    dex::u1 *ObfuscateDexCopy(void *dex, size_t size, const Signatures &signatures,
+                              dex::Writer::Allocator *allocator, size_t *new_size) {
+        dex::Reader reader{reinterpret_cast<const dex::u1 *>(dex), size};
+
+        reader.CreateFullIr();
+        auto ir = reader.GetIr();
+        for (auto &i: ir->strings) {
+            const char *s = i->c_str();
+            for (const auto &signature: signatures) {
+                char *p = const_cast<char *>(strstr(s, signature.first.c_str()));
+                if (p) {
+                    auto new_sig = signature.second.c_str();
+                    // NOLINTNEXTLINE bugprone-not-null-terminated-result
+                    memcpy(p, new_sig, strlen(new_sig));
+                }
+            }
+        }
+        dex::Writer writer(ir);
+        return writer.CreateImage(allocator, new_size);  // allocates memory only once
+    }
+}  // namespace lspd
@@ -0,0 +1,45 @@
+/*
+ * This file is part of LSPosed.
+ *
+ * LSPosed is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LSPosed is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LSPosed.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (C) 2022 LSPosed Contributors
+ */
+
+#pragma once
+
+#include <cstddef>
+#include <map>
+#include <random>
+#include <string>
+#include <string_view>
+#include "slicer/writer.h"
+
+// The parts of the dex obfuscation that do not depend on JNI, shared with the host test.
+namespace lspd {
+    // original signature => replacement of the same length
+    using Signatures = std::map<const std::string, std::string>;
+
+    // Random replacement for a signature like "Lcom/example/", see the definition for its shape.
+    std::string GenerateReplacement(std::string_view original, std::mt19937 &rg);
+
+    // Patches the signatures directly in the string data of a writable dex and updates the header
+    // signature and checksum. Returns false, without writing anything, if the patched dex would not
+    // be valid as is, the caller then has to rebuild it with ObfuscateDexCopy.
+    bool ObfuscateDexInPlace(void *dex, size_t size, const Signatures &signatures);
+
+    // Rebuilds the dex with slicer. The strings are patched in the input as well.
+    dex::u1 *ObfuscateDexCopy(void *dex, size_t size, const Signatures &signatures,
+                              dex::Writer::Allocator *allocator, size_t *new_size);
+}  // namespace lspd
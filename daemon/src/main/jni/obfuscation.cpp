@@ -24,6 +24,7 @@
 #include <jni.h>
 #include <unistd.h>
 #include <algorithm>
+#include <cctype>
 #include <random>
 #include <unordered_map>
 #include <sys/mman.h>
@@ -33,13 +34,14 @@
 #include <fcntl.h>
 #include "slicer/reader.h"
 #include "slicer/writer.h"
+#include "dex_obfuscation.h"
 #include "obfuscation.h"
 #include "logging.h"
 
 using namespace lsplant;
 namespace {
 std::mutex init_lock{};
-std::map<const std::string, std::string> signatures = {
+lspd::Signatures signatures = {
         {"Lcom/debin/android/fun/", ""},
         { "Landroid/app/AndroidApp", ""},
         { "Landroid/content/res/XRes", ""},
@@ -56,6 +58,8 @@ jclass class_shared_memory;
 jmethodID method_shared_memory_ctor;
 
 bool inited = false;
+// set by nativeRestoreSignatures, maybeInit then keeps them
+bool restored = false;
 }
 
 static std::string to_java(const std::string &signature) {
@@ -64,6 +68,27 @@ static std::string to_java(const std::string &signature) {
     return java;
 }
 
+static std::string from_java(std::string_view java) {
+    std::string signature = "L";
+    signature += java;
+    replace(signature.begin() + 1, signature.end(), '.', '/');
+    return signature;
+}
+
+// what regen could have produced for the original
+static bool isValidReplacement(const std::string &original, const std::string &replacement) {
+    if (replacement.size() != original.size() || replacement.front() != 'L' || replacement.back() != '/') {
+        return false;
+    }
+    for (size_t i = 1; i < replacement.size(); i++) {
+        auto c = replacement[i];
+        if (c == '/' ? replacement[i - 1] == '/' || i == 1 : !isalpha(static_cast<unsigned char>(c))) {
+            return false;
+        }
+    }
+    return true;
+}
+
 void maybeInit(JNIEnv *env) {
     if (inited) [[likely]] return;
     std::lock_guard l(init_lock);
@@ -80,37 +105,12 @@ void maybeInit(JNIEnv *env) {
 
     method_shared_memory_ctor = JNI_GetMethodID(env, class_shared_memory, "<init>", "(Ljava/io/FileDescriptor;)V");
 
-    auto regen = [](std::string_view original_signature) {
-        static auto& chrs = "abcdefghijklmnopqrstuvwxyz"
-                            "ABCDEFGHIJKLMNOPQRSTUVWXYZ";
-
-        thread_local static std::mt19937 rg{std::random_device{}()};
-        thread_local static std::uniform_int_distribution<std::string::size_type> pick(0, sizeof(chrs) - 2);
-        thread_local static std::uniform_int_distribution<std::string::size_type> choose_slash(0, 10);
-
-        std::string out;
-        size_t length = original_signature.size();
-        out.reserve(length);
-        out += "L";
-
-        for (size_t i = 1; i < length - 1; i++) {
-            if (choose_slash(rg) > 8 &&                         // 80% alphabet + 20% slashes
-                out[i - 1] != '/' &&                                // slashes could not stick together
-                i != 1 &&                                           // the first character should not be slash
-                i != length - 2) {                                  // and the last character
-                out += "/";
-            } else {
-                out += chrs[pick(rg)];
-            }
+    if (!restored) {
+        std::mt19937 rg{std::random_device{}()};
+        for (auto &i: signatures) {
+            i.second = lspd::GenerateReplacement(i.first, rg);
+            LOGD("%s => %s", i.first.c_str(), i.second.c_str());
         }
-
-        out += "/";
-        return out;
-    };
-
-    for (auto &i: signatures) {
-        i.second = regen(i.first);
-        LOGD("%s => %s", i.first.c_str(), i.second.c_str());
     }
 
     LOGD("ObfuscationManager init successfully");
@@ -145,9 +145,40 @@ jobject stringMapToJavaHashMap(JNIEnv *env, const decltype(signatures)& map) {
     return hashMapGobal;
 }
 
+extern "C"
+JNIEXPORT jboolean JNICALL
+Java_com_posed_lspd_service_ObfuscationManager_nativeRestoreSignatures(JNIEnv *env, [[maybe_unused]] jclass obfuscation_manager,
+                                                                      jobjectArray originals, jobjectArray replacements) {
+    std::lock_guard l(init_lock);
+    if (inited || restored) return JNI_FALSE;
+    auto count = env->GetArrayLength(originals);
+    if (count != env->GetArrayLength(replacements) || static_cast<size_t>(count) != signatures.size()) {
+        return JNI_FALSE;
+    }
+    decltype(signatures) restoring;
+    for (jsize i = 0; i < count; i++) {
+        auto original = static_cast<jstring>(env->GetObjectArrayElement(originals, i));
+        auto replacement = static_cast<jstring>(env->GetObjectArrayElement(replacements, i));
+        if (!original || !replacement) return JNI_FALSE;
+        auto key = from_java(JUTFString(env, original).get());
+        auto value = from_java(JUTFString(env, replacement).get());
+        env->DeleteLocalRef(original);
+        env->DeleteLocalRef(replacement);
+        if (!signatures.contains(key) || !isValidReplacement(key, value)) return JNI_FALSE;
+        restoring[key] = value;
+    }
+    if (restoring.size() != signatures.size()) return JNI_FALSE;
+    signatures = std::move(restoring);
+    restored = true;
+    for (const auto &i: signatures) {
+        LOGD("%s => %s (restored)", i.first.c_str(), i.second.c_str());
+    }
+    return JNI_TRUE;
+}
+
 extern "C"
 JNIEXPORT jobject JNICALL
-Java_com_posed_lspd_service_ObfuscationManager_getSignatures(JNIEnv *env, [[maybe_unused]] jclass obfuscation_manager) {
+Java_com_posed_lspd_service_ObfuscationManager_nativeGetSignatures(JNIEnv *env, [[maybe_unused]] jclass obfuscation_manager) {
     maybeInit(env);
     static jobject signatures_jni = nullptr;
     if (signatures_jni) return signatures_jni;
@@ -159,47 +190,35 @@ Java_com_posed_lspd_service_ObfuscationManager_getSignatures(JNIEnv *env, [[mayb
     return signatures_jni;
 }
 
-static int obfuscateDex(const void *dex, size_t size) {
-    // const char* new_sig = obfuscated_signature.c_str();
-    dex::Reader reader{reinterpret_cast<const dex::u1*>(dex), size};
-
-    reader.CreateFullIr();
-    auto ir = reader.GetIr();
-    for (auto &i: ir->strings) {
-        const char *s = i->c_str();
-        for (const auto &signature: signatures) {
-            char* p = const_cast<char *>(strstr(s, signature.first.c_str()));
-            if (p) {
-                auto new_sig = signature.second.c_str();
-                // NOLINTNEXTLINE bugprone-not-null-terminated-result
-                memcpy(p, new_sig, strlen(new_sig));
-            }
-        }
-    }
-    dex::Writer writer(ir);
-
-    size_t new_size;
-    WA allocator;
-    auto *p_dex = writer.CreateImage(&allocator, &new_size);  // allocates memory only once
-    return allocator.GetFd(p_dex);
-}
-
 extern "C"
 JNIEXPORT jobject
-Java_com_posed_lspd_service_ObfuscationManager_obfuscateDex(JNIEnv *env, [[maybe_unused]] jclass obfuscation_manager,
+Java_com_posed_lspd_service_ObfuscationManager_nativeObfuscateDex(JNIEnv *env, [[maybe_unused]] jclass obfuscation_manager,
                                                        jobject memory) {
     maybeInit(env);
     int fd = ASharedMemory_dupFromJava(env, memory);
     auto size = ASharedMemory_getSize(fd);
     LOGD("fd=%d, size=%zu", fd, size);
 
-    const void* mem = mmap(nullptr, size, PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0);
+    void* mem = mmap(nullptr, size, PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0);
     if (mem == MAP_FAILED) {
         LOGE("old dex map failed?");
+        close(fd);
         return nullptr;
     }
 
-    auto new_fd = obfuscateDex(mem, size);
+    // the daemon owns the only copy of this memory, patch it if the layout allows
+    if (lspd::ObfuscateDexInPlace(mem, size, signatures)) {
+        munmap(mem, size);
+        close(fd);
+        return memory;
+    }
+
+    size_t new_size;
+    WA allocator;
+    auto *p_dex = lspd::ObfuscateDexCopy(mem, size, signatures, &allocator, &new_size);
+    auto new_fd = allocator.GetFd(p_dex);
+    munmap(mem, size);
+    close(fd);
 
     // construct new shared mem with fd
     auto java_fd = JNI_NewObject(env, class_file_descriptor, method_file_descriptor_ctor, new_fd);
@@ -0,0 +1,190 @@
+/*
+ * This file is part of LSPosed.
+ *
+ * LSPosed is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LSPosed is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LSPosed.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (C) 2022 LSPosed Contributors
+ */
+
+package com.posed.lspd.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+public class OrderedPreparerTest {
+    @Test
+    public void keepsOrder() throws InterruptedException {
+        var items = Arrays.asList(0, 1, 2, 3);
+        var finished = new ArrayList<Integer>();
+        var latches = new CountDownLatch[items.size()];
+        for (int i = 0; i < latches.length; i++) latches[i] = new CountDownLatch(1);
+        var executor = Executors.newFixedThreadPool(items.size());
+        try {
+            // every item waits for the next one, so they finish in reverse order
+            var results = new OrderedPreparer<Integer, String>(executor).prepare(items, i -> {
+                try {
+                    if (i + 1 < latches.length) latches[i + 1].await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                synchronized (finished) {
+                    finished.add(i);
+                }
+                latches[i].countDown();
+                return "item" + i;
+            }, (i, e) -> {
+                throw new AssertionError(e);
+            });
+            assertEquals(Arrays.asList("item0", "item1", "item2", "item3"), results);
+            assertEquals(Arrays.asList(3, 2, 1, 0), finished);
+        } finally {
+            shutdown(executor);
+        }
+    }
+
+    @Test
+    public void failedItemIsNull() throws InterruptedException {
+        var failed = new ArrayList<Integer>();
+        var executor = Executors.newFixedThreadPool(2);
+        try {
+            var results = new OrderedPreparer<Integer, Integer>(executor).prepare(Arrays.asList(1, 0, 2), i -> 2 / i,
+                    (i, e) -> {
+                        assertTrue(e instanceof ArithmeticException);
+                        failed.add(i);
+                    });
+            assertEquals(Arrays.asList(2, null, 1), results);
+            assertEquals(Collections.singletonList(0), failed);
+        } finally {
+            shutdown(executor);
+        }
+    }
+
+    /**
+     * Reads fake module apks, one much larger than the others, on the serial path and on a
+     * pool of four threads, and expects the pool to take less wall-clock time.
+     */
+    @Test
+    public void fasterThanSerial() throws IOException, InterruptedException {
+        assumeTrue("needs more than one cpu", Runtime.getRuntime().availableProcessors() > 1);
+        var dir = Files.createTempDirectory("lspd-modules").toFile();
+        var apks = new ArrayList<File>();
+        try {
+            apks.add(writeFakeApk(dir, "large", 32));
+            for (int i = 0; i < 7; i++) {
+                apks.add(writeFakeApk(dir, "small" + i, 4));
+            }
+            var serial = Executors.newSingleThreadExecutor();
+            var pool = Executors.newFixedThreadPool(4);
+            try {
+                var expected = prepare(serial, apks);
+                assertEquals(expected, prepare(pool, apks));
+                long serialNanos = Long.MAX_VALUE, poolNanos = Long.MAX_VALUE;
+                for (int i = 0; i < 3; i++) {
+                    var begin = System.nanoTime();
+                    prepare(serial, apks);
+                    serialNanos = Math.min(serialNanos, System.nanoTime() - begin);
+                    begin = System.nanoTime();
+                    prepare(pool, apks);
+                    poolNanos = Math.min(poolNanos, System.nanoTime() - begin);
+                }
+                assertTrue("serial " + serialNanos / 1000000 + "ms, pool " + poolNanos / 1000000 + "ms",
+                        poolNanos < serialNanos * 0.8);
+            } finally {
+                shutdown(serial);
+                shutdown(pool);
+            }
+        } finally {
+            apks.forEach(File::delete);
+            assertTrue(dir.delete());
+        }
+    }
+
+    private static List<String> prepare(ExecutorService executor, List<File> apks) {
+        return new OrderedPreparer<File, String>(executor).prepare(apks, OrderedPreparerTest::digestDexes,
+                (apk, e) -> {
+                    throw new AssertionError(apk.getName(), e);
+                });
+    }
+
+    // what loading a module costs without the android parts: reading every dex out of the apk
+    private static String digestDexes(File apk) {
+        try (var zip = new ZipFile(apk)) {
+            var digest = MessageDigest.getInstance("SHA-256");
+            var buffer = new byte[8192];
+            for (var entries = zip.entries(); entries.hasMoreElements(); ) {
+                var entry = entries.nextElement();
+                if (!entry.getName().endsWith(".dex")) continue;
+                try (var in = zip.getInputStream(entry)) {
+                    for (int n; (n = in.read(buffer)) > 0; ) {
+                        digest.update(buffer, 0, n);
+                    }
+                }
+            }
+            var sb = new StringBuilder();
+            for (var b : digest.digest()) sb.append(String.format("%02x", b));
+            return sb.toString();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static File writeFakeApk(File dir, String name, int dexMegabytes) throws IOException {
+        var apk = new File(dir, name + ".apk");
+        var random = new Random(name.hashCode());
+        var chunk = new byte[1024 * 1024];
+        try (var out = new ZipOutputStream(new FileOutputStream(apk))) {
+            out.putNextEntry(new ZipEntry("assets/xposed_init"));
+            out.write(("com.example." + name + ".Init\n").getBytes());
+            out.closeEntry();
+            out.putNextEntry(new ZipEntry("classes.dex"));
+            for (int i = 0; i < dexMegabytes; i++) {
+                random.nextBytes(chunk);
+                out.write(chunk);
+            }
+            out.closeEntry();
+        }
+        return apk;
+    }
+
+    private static void shutdown(ExecutorService executor) throws InterruptedException {
+        executor.shutdownNow();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * This file is part of LSPosed.
+ *
+ * LSPosed is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LSPosed is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LSPosed.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (C) 2022 LSPosed Contributors
+ */
+
+package com.posed.lspd.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.commons.lang3.SerializationUtils;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+public class PreferenceCodecTest {
+    private static final List<Object> VALUES = Arrays.asList(
+            true, false,
+            0, -1, Integer.MAX_VALUE,
+            Long.MIN_VALUE, 42L,
+            1.5f, Float.NaN,
+            -0.25, Double.MAX_VALUE,
+            "", "value", "\u00e4\u4e2d\ud83d\ude00",
+            Collections.<String>emptySet(), new HashSet<>(Arrays.asList("a", "", "\u4e2d"))
+    );
+
+    @Test
+    public void roundTrip() {
+        for (var value : VALUES) {
+            assertTrue(String.valueOf(value), PreferenceCodec.canEncode(value));
+            var data = PreferenceCodec.encode(value);
+            assertFalse(String.valueOf(value), PreferenceCodec.isLegacy(data));
+            assertEquals(value, PreferenceCodec.decode(data));
+        }
+    }
+
+    @Test
+    public void canNotEncode() {
+        assertFalse(PreferenceCodec.canEncode(null));
+        assertFalse(PreferenceCodec.canEncode(new byte[0]));
+        assertFalse(PreferenceCodec.canEncode(Collections.singleton(1)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void encodeUnsupported() {
+        PreferenceCodec.encode(new Object());
+    }
+
+    @Test
+    public void legacy() {
+        var values = new HashSet<>(VALUES);
+        values.add(new HashSet<>(Arrays.asList("x", "y")));
+        for (var value : values) {
+            var data = SerializationUtils.serialize((java.io.Serializable) value);
+            assertEquals((byte) 0xAC, data[0]);
+            assertTrue(PreferenceCodec.isLegacy(data));
+            assertEquals(value, PreferenceCodec.decode(data));
+        }
+    }
+
+    @Test
+    public void truncated() {
+        for (var value : VALUES) {
+            var data = PreferenceCodec.encode(value);
+            for (int length = 0; length < data.length; length++) {
+                assertNull(value + " cut at " + length, PreferenceCodec.decode(Arrays.copyOf(data, length)));
+            }
+        }
+    }
+
+    @Test
+    public void truncatedLegacy() {
+        var data = SerializationUtils.serialize("value");
+        for (int length = 0; length < data.length; length++) {
+            assertNull("cut at " + length, PreferenceCodec.decode(Arrays.copyOf(data, length)));
+        }
+    }
+
+    @Test
+    public void unknownVersion() {
+        var data = PreferenceCodec.encode(42);
+        data[0] = 2;
+        assertFalse(PreferenceCodec.isLegacy(data));
+        assertNull(PreferenceCodec.decode(data));
+        assertFalse(PreferenceCodec.isLegacy(new byte[]{(byte) 0xAC}));
+        assertNull(PreferenceCodec.decode(new byte[]{(byte) 0xAC}));
+    }
+
+    @Test
+    public void unknownType() {
+        assertNull(PreferenceCodec.decode(new byte[]{1, 127, 0, 0, 0, 0}));
+    }
+
+    @Test
+    public void negativeLength() {
+        assertNull(PreferenceCodec.decode(new byte[]{1, 6, -1, -1, -1, -1}));
+        assertNull(PreferenceCodec.decode(new byte[]{1, 7, 0, 0, 0, 1, -1, -1, -1, -1}));
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * This file is part of LSPosed.
+ *
+ * LSPosed is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LSPosed is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LSPosed.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (C) 2022 LSPosed Contributors
+ */
+
+package com.posed.lspd.util;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class UpdateCoalescerTest {
+    private static final long WINDOW = 200;
+    private static final long MAX_DELAY = 1000;
+
+    private long now = 0;
+    private Runnable task = null;
+    private long taskTime = -1;
+    // "<time> full" or "<time> <items>"
+    private final List<String> updates = new ArrayList<>();
+
+    private final UpdateCoalescer<String> coalescer = new UpdateCoalescer<>(WINDOW, MAX_DELAY, () -> now,
+            (task, uptimeMillis) -> {
+                this.task = task;
+                this.taskTime = uptimeMillis;
+            }, (full, items) -> updates.add(now + (full ? " full" : " " + items)));
+
+    // moves the clock forward, running the scheduled task when it is due
+    private void advanceTo(long time) {
+        while (task != null && taskTime <= time) {
+            now = taskTime;
+            var due = task;
+            task = null;
+            due.run();
+        }
+        now = time;
+    }
+
+    @Test
+    public void singleRequest() {
+        advanceTo(50);
+        coalescer.request(null);
+        advanceTo(5000);
+        assertEquals(Collections.singletonList("250 full"), updates);
+    }
+
+    @Test
+    public void burstWithinWindow() {
+        // 30 package broadcasts, 20ms apart
+        for (int i = 0; i < 30; i++) {
+            advanceTo(i * 20);
+            coalescer.request(null);
+        }
+        advanceTo(5000);
+        assertEquals(Collections.singletonList("780 full"), updates);
+    }
+
+    @Test
+    public void quietWindowSplitsBursts() {
+        for (long t : new long[]{0, 150, 300}) {
+            advanceTo(t);
+            coalescer.request(null);
+        }
+        // the first burst runs at 500, this one is more than a window later
+        advanceTo(700);
+        coalescer.request(null);
+        advanceTo(750);
+        coalescer.request(null);
+        advanceTo(5000);
+        assertEquals(Arrays.asList("500 full", "950 full"), updates);
+    }
+
+    @Test
+    public void maxDelayBoundsSteadyStream() {
+        // a request every 100ms for 3.5s never leaves a quiet window,
+        // the request at 1000 comes after that update and opens the next burst
+        for (int t = 0; t < 3500; t += 100) {
+            advanceTo(t);
+            coalescer.request(null);
+        }
+        advanceTo(10000);
+        assertEquals(Arrays.asList("1000 full", "2000 full", "3000 full", "3600 full"), updates);
+    }
+
+    @Test
+    public void mergesItems() {
+        coalescer.request("a");
+        advanceTo(10);
+        coalescer.request("b");
+        advanceTo(20);
+        coalescer.request("a");
+        advanceTo(1000);
+        coalescer.request("c");
+        advanceTo(1100);
+        coalescer.request(null);
+        coalescer.request("d");
+        advanceTo(5000);
+        assertEquals(Arrays.asList("220 [a, b]", "1300 full"), updates);
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * This file is part of LSPosed.
+ *
+ * LSPosed is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LSPosed is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LSPosed.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (C) 2022 LSPosed Contributors
+ */
+
+// Host test: obfuscates each dex given on the command line in place and with slicer, and checks
+// that both results have the same ids. Dexes that can not be patched in place are only counted.
+
+#include <cstdio>
+#include <cstdlib>
+#include <cstring>
+#include <fstream>
+#include <iterator>
+#include <vector>
+#include <zlib.h>
+#include "slicer/reader.h"
+#include "dex_obfuscation.h"
+
+namespace {
+    class MallocAllocator : public dex::Writer::Allocator {
+    public:
+        void *Allocate(size_t size) override { return malloc(size); }
+
+        void Free(void *ptr) override { free(ptr); }
+    };
+
+    // keep in sync with obfuscation.cpp
+    lspd::Signatures MakeSignatures() {
+        lspd::Signatures signatures = {
+                {"Lcom/debin/android/fun/", ""},
+                {"Landroid/app/AndroidApp", ""},
+                {"Landroid/content/res/XRes", ""},
+                {"Landroid/content/res/XModule", ""},
+                {"Lcom/posed/lspd/core/", ""},
+                {"Lcom/posed/lspd/nativebridge/", ""},
+                {"Lcom/posed/lspd/service/", ""},
+        };
+        std::mt19937 rg{42};
+        for (auto &i: signatures) {
+            i.second = lspd::GenerateReplacement(i.first, rg);
+            if (i.second.size() != i.first.size()) {
+                fprintf(stderr, "%s => %s changes the length\n", i.first.c_str(), i.second.c_str());
+                exit(1);
+            }
+        }
+        return signatures;
+    }
+
+    template<class T>
+    bool SameIds(const char *what, slicer::ArrayView<const T> patched, slicer::ArrayView<const T> rebuilt,
+                 bool (*same)(const T &, const T &)) {
+        if (patched.size() != rebuilt.size()) {
+            fprintf(stderr, "  %s: %zu != %zu\n", what, patched.size(), rebuilt.size());
+            return false;
+        }
+        for (size_t i = 0; i < patched.size(); i++) {
+            if (!same(patched[i], rebuilt[i])) {
+                fprintf(stderr, "  %s[%zu] differs\n", what, i);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    bool Compare(const std::vector<dex::u1> &patched_image, const dex::u1 *rebuilt_image, size_t rebuilt_size) {
+        dex::Reader patched(patched_image.data(), patched_image.size());
+        dex::Reader rebuilt(rebuilt_image, rebuilt_size);
+
+        auto *header = reinterpret_cast<const dex::Header *>(patched_image.data());
+        constexpr size_t kChecksumSkip = offsetof(dex::Header, signature);
+        if (header->checksum != adler32(adler32(0L, Z_NULL, 0), patched_image.data() + kChecksumSkip,
+                                        header->file_size - kChecksumSkip)) {
+            fprintf(stderr, "  wrong checksum\n");
+            return false;
+        }
+
+        if (patched.StringIds().size() != rebuilt.StringIds().size()) {
+            fprintf(stderr, "  strings: %zu != %zu\n", patched.StringIds().size(), rebuilt.StringIds().size());
+            return false;
+        }
+        for (dex::u4 i = 0; i < patched.StringIds().size(); i++) {
+            if (strcmp(patched.GetStringMUTF8(i), rebuilt.GetStringMUTF8(i)) != 0) {
+                fprintf(stderr, "  string %u: %s != %s\n", i, patched.GetStringMUTF8(i), rebuilt.GetStringMUTF8(i));
+                return false;
+            }
+        }
+        return SameIds<dex::TypeId>("types", patched.TypeIds(), rebuilt.TypeIds(),
+                                    [](const auto &a, const auto &b) {
+                                        return a.descriptor_idx == b.descriptor_idx;
+                                    }) &&
+               SameIds<dex::ProtoId>("protos", patched.ProtoIds(), rebuilt.ProtoIds(),
+                                     [](const auto &a, const auto &b) {
+                                         return a.shorty_idx == b.shorty_idx &&
+                                                a.return_type_idx == b.return_type_idx;
+                                     }) &&
+               SameIds<dex::FieldId>("fields", patched.FieldIds(), rebuilt.FieldIds(),
+                                     [](const auto &a, const auto &b) {
+                                         return a.class_idx == b.class_idx && a.type_idx == b.type_idx &&
+                                                a.name_idx == b.name_idx;
+                                     }) &&
+               SameIds<dex::MethodId>("methods", patched.MethodIds(), rebuilt.MethodIds(),
+                                      [](const auto &a, const auto &b) {
+                                          return a.class_idx == b.class_idx && a.proto_idx == b.proto_idx &&
+                                                 a.name_idx == b.name_idx;
+                                      });
+    }
+}  // namespace
+
+int main(int argc, char **argv) {
+    if (argc < 2) {
+        fprintf(stderr, "usage: %s <dex>...\n", argv[0]);
+        return 2;
+    }
+    auto signatures = MakeSignatures();
+    int failed = 0, patched = 0, rebuilt = 0;
+    for (int i = 1; i < argc; i++) {
+        std::ifstream in(argv[i], std::ios::binary);
+        std::vector<dex::u1> image((std::istreambuf_iterator<char>(in)), std::istreambuf_iterator<char>());
+        if (!in.good() && !in.eof()) {
+            fprintf(stderr, "%s: can not read\n", argv[i]);
+            failed++;
+            continue;
+        }
+        auto copy = image;
+        MallocAllocator allocator;
+        size_t rebuilt_size;
+        auto *rebuilt_image = lspd::ObfuscateDexCopy(copy.data(), copy.size(), signatures,
+                                                     &allocator, &rebuilt_size);
+        if (!lspd::ObfuscateDexInPlace(image.data(), image.size(), signatures)) {
+            printf("%s: rebuilt\n", argv[i]);
+            rebuilt++;
+        } else if (Compare(image, rebuilt_image, rebuilt_size)) {
+            printf("%s: patched in place\n", argv[i]);
+            patched++;
+        } else {
+            fprintf(stderr, "%s: in place result differs from slicer\n", argv[i]);
+            failed++;
+        }
+        allocator.Free(rebuilt_image);
+    }
+    printf("%d patched in place, %d rebuilt, %d failed\n", patched, rebuilt, failed);
+    return failed == 0 ? 0 : 1;
+}
@@ -1,5 +1,5 @@
 -keepclasseswithmembers class com.posed.lspd.core.Main {
-    public static void forkCommon(boolean, java.lang.String, android.os.IBinder);
+    public static void forkCommon(boolean, java.lang.String, android.os.IBinder, android.os.Parcel);
 }
 -keepclasseswithmembers,includedescriptorclasses class * {
     native <methods>;
@@ -20,6 +20,7 @@
 package com.posed.lspd.core;
 
 import android.os.IBinder;
+import android.os.Parcel;
 import android.os.Process;
 
 import com.posed.lspd.BuildConfig;
@@ -29,8 +30,8 @@ import com.posed.lspd.util.Utils;
 
 public class Main {
 
-    public static void forkCommon(boolean isSystem, String niceName, IBinder binder) {
-        Startup.initXposed(isSystem, niceName, ILSPApplicationService.Stub.asInterface(binder));
+    public static void forkCommon(boolean isSystem, String niceName, IBinder binder, Parcel bootstrap) {
+        Startup.initXposed(isSystem, niceName, ILSPApplicationService.Stub.asInterface(binder), bootstrap);
         if ((niceName.equals(BuildConfig.MANAGER_INJECTED_PKG_NAME) || niceName.equals(BuildConfig.DEFAULT_MANAGER_PACKAGE_NAME))
                 && ParasiticManagerHooker.start()) {
             Utils.logI("Loaded manager, skipping next steps");
@@ -21,12 +21,16 @@
 #include <fcntl.h>
 #include <dlfcn.h>
 #include <sys/mman.h>
+#include <unistd.h>
+#include <array>
+#include <cstring>
 
 #include "zygisk.h"
 #include "logging.h"
 #include "loader.h"
 #include "config_impl.h"
 #include "magisk_loader.h"
+#include "scope_table.h"
 #include "symbol_cache.h"
 
 namespace lspd {
@@ -170,6 +174,10 @@ namespace lspd {
         }
 
         int allow_unload = 0;
+
+        // first int a zygote side sends to the companion
+        constexpr int kRequestSymbolCache = 0;
+        constexpr int kRequestScopeTable = 1;
     }
 
     int *allowUnload = &allow_unload;
@@ -291,6 +299,7 @@ namespace lspd {
                 return;
             }
 
+            write_int(companion, kRequestSymbolCache);
             if (int fd = -1, size = 0; (size = read_int(companion)) > 0 &&
                                        (fd = recv_fd(companion)) != -1) {
                 if (auto addr = mmap(nullptr, size, PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0);
@@ -309,10 +318,23 @@ namespace lspd {
             close(companion);
         }
 
+        // still privileged here, but the scope table is only readable for the companion
+        int RequestScopeTable() {
+            auto companion = api_->connectCompanion();
+            if (companion == -1) return -1;
+            write_int(companion, kRequestScopeTable);
+            auto fd = read_int(companion) > 0 ? recv_fd(companion) : -1;
+            close(companion);
+            return fd;
+        }
+
         void preAppSpecialize(zygisk::AppSpecializeArgs *args) override {
-            MagiskLoader::GetInstance()->OnNativeForkAndSpecializePre(
+            auto *loader = MagiskLoader::GetInstance();
+            loader->OnNativeForkAndSpecializePre(
                     env_, args->uid, args->gids, args->nice_name,
                     args->is_child_zygote ? *args->is_child_zygote : false, args->app_data_dir);
+            loader->SkipIfUnscoped(env_, args->uid, args->nice_name,
+                                   [this] { return RequestScopeTable(); });
         }
 
         void postAppSpecialize(const zygisk::AppSpecializeArgs *args) override {
@@ -356,8 +378,43 @@ namespace lspd {
         return symbol;
     }
 
+    // the table is only handed out if the daemon wrote it during this boot
+    int OpenScopeTable() {
+        static const auto boot_id = []() {
+            std::array<char, ScopeTable::kBootIdSize> id{};
+            if (auto fd = open("/proc/sys/kernel/random/boot_id", O_RDONLY | O_CLOEXEC); fd >= 0) {
+                auto len = read(fd, id.data(), id.size());
+                for (auto i = std::max<ssize_t>(len, 0); i-- > 0 && (id[i] == '\n' || id[i] == '\0');) {
+                    id[i] = '\0';
+                }
+                close(fd);
+            }
+            return id;
+        }();
+        if (boot_id[0] == '\0') return -1;
+        auto fd = open(ScopeTable::kPath, O_RDONLY | O_CLOEXEC);
+        if (fd < 0) return -1;
+        ScopeTable::Header header{};
+        if (pread(fd, &header, sizeof(header), 0) != sizeof(header) ||
+            header.magic != ScopeTable::kMagic ||
+            memcmp(header.boot_id, boot_id.data(), boot_id.size()) != 0) {
+            close(fd);
+            return -1;
+        }
+        return fd;
+    }
+
     void CompanionEntry(int client) {
         using namespace std::string_literals;
+        if (read_int(client) == kRequestScopeTable) {
+            if (auto fd = OpenScopeTable(); fd >= 0) {
+                write_int(client, 1);
+                send_fd(client, fd);
+                close(fd);
+            } else write_int(client, -1);
+            close(client);
+            return;
+        }
         static auto symbol = InitCompanion();
         LOGD("Got cache with fd={} size={}", symbol.get(), symbol.size());
         if (symbol.ok()) {
@@ -27,6 +27,7 @@
 #include "loader.h"
 #include "magisk_loader.h"
 #include "native_util.h"
+#include "scope_table.h"
 #include "service.h"
 #include "symbol_cache.h"
 #include "utils/jni_helper.hpp"
@@ -111,8 +112,11 @@ namespace lspd {
             // Call application_binder directly if application binder is available,
             // or we proxy the request from system server binder
             auto &&next_binder = application_binder ? application_binder : system_server_binder;
-            const auto [dex_fd, size] = instance->RequestLSPDex(env, next_binder);
-            auto obfs_map = instance->RequestObfuscationMap(env, next_binder);
+            auto bootstrap = instance->RequestBootstrap(env, next_binder);
+            const auto [dex_fd, size] = bootstrap ? instance->ReadLSPDex(env, bootstrap)
+                                                  : instance->RequestLSPDex(env, next_binder);
+            auto obfs_map = bootstrap ? instance->ReadObfuscationMap(env, bootstrap)
+                                      : instance->RequestObfuscationMap(env, next_binder);
             ConfigBridge::GetInstance()->obfuscation_map(std::move(obfs_map));
             LoadDex(env, PreloadedDex(dex_fd, size));
             close(dex_fd);
@@ -138,13 +142,15 @@ namespace lspd {
                 InitHooks(env);
                 SetupEntryClass(env);
                 FindAndCall(env, "forkCommon",
-                            "(ZLjava/lang/String;Landroid/os/IBinder;)V",
-                            JNI_TRUE, JNI_NewStringUTF(env, "android"), application_binder);
+                            "(ZLjava/lang/String;Landroid/os/IBinder;Landroid/os/Parcel;)V",
+                            JNI_TRUE, JNI_NewStringUTF(env, "android"), application_binder,
+                            bootstrap);
                 GetArt(true);
             } else {
                 LOGI("skipped system server");
                 GetArt(true);
             }
+            instance->RecycleParcel(env, bootstrap);
         }
     }
 
@@ -187,6 +193,21 @@ namespace lspd {
         setAllowUnload(skip_);
     }
 
+    void MagiskLoader::SkipIfUnscoped(JNIEnv *env, jint uid, jstring nice_name,
+                                      const std::function<int()> &open_table) {
+        // the injected manager is granted by the daemon on demand
+        if (skip_ || uid == kAidInjected) return;
+        auto fd = open_table();
+        if (fd < 0) return;
+        const JUTFString process_name(env, nice_name);
+        if (ScopeTable::Lookup(fd, uid, process_name.get()) == ScopeTable::Result::kUnscoped) {
+            skip_ = true;
+            LOGD("skip injecting into {} because it's not in scope", process_name.get());
+        }
+        close(fd);
+        setAllowUnload(skip_);
+    }
+
     void
     MagiskLoader::OnNativeForkAndSpecializePost(JNIEnv *env, jstring nice_name) {
         const JUTFString process_name(env, nice_name);
@@ -209,8 +230,11 @@ namespace lspd {
                         return GetArt()->getSymbPrefixFirstAddress(symbol);
                     },
             };
-            auto [dex_fd, size] = instance->RequestLSPDex(env, binder);
-            auto obfs_map = instance->RequestObfuscationMap(env, binder);
+            auto bootstrap = instance->RequestBootstrap(env, binder);
+            auto [dex_fd, size] = bootstrap ? instance->ReadLSPDex(env, bootstrap)
+                                            : instance->RequestLSPDex(env, binder);
+            auto obfs_map = bootstrap ? instance->ReadObfuscationMap(env, bootstrap)
+                                      : instance->RequestObfuscationMap(env, binder);
             ConfigBridge::GetInstance()->obfuscation_map(std::move(obfs_map));
             LoadDex(env, PreloadedDex(dex_fd, size));
             close(dex_fd);
@@ -219,8 +243,9 @@ namespace lspd {
             SetupEntryClass(env);
             LOGD("Done prepare");
             FindAndCall(env, "forkCommon",
-                        "(ZLjava/lang/String;Landroid/os/IBinder;)V",
-                        JNI_FALSE, nice_name, binder);
+                        "(ZLjava/lang/String;Landroid/os/IBinder;Landroid/os/Parcel;)V",
+                        JNI_FALSE, nice_name, binder, bootstrap);
+            instance->RecycleParcel(env, bootstrap);
             LOGD("injected xposed into {}", process_name.get());
             setAllowUnload(false);
             GetArt(true);
@@ -23,6 +23,8 @@
 
 #pragma once
 
+#include <functional>
+
 #include "context.h"
 
 namespace lspd {
@@ -41,6 +43,11 @@ namespace lspd {
 
         void OnNativeForkAndSpecializePost(JNIEnv *env, jstring nice_name);
 
+        // Skips a process the daemon's scope table does not list, without any binder call.
+        // open_table returns the table or -1, it is only called if the table can decide.
+        void SkipIfUnscoped(JNIEnv *env, jint uid, jstring nice_name,
+                            const std::function<int()> &open_table);
+
         void OnNativeForkSystemServerPost(JNIEnv *env);
 
         void OnNativeForkSystemServerPre(JNIEnv *env);
@@ -0,0 +1,120 @@
+/*
+ * This file is part of LSPosed.
+ *
+ * LSPosed is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LSPosed is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LSPosed.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Copyright (C) 2022 LSPosed Contributors
+ */
+
+#pragma once
+
+#include <algorithm>
+#include <atomic>
+#include <cstddef>
+#include <cstdint>
+#include <string_view>
+#include <sys/mman.h>
+#include <sys/stat.h>
+
+namespace lspd {
+    // Processes that may be hooked, published by the daemon (ConfigFileManager.writeScopeTable).
+    // Layout: Header, Entry[count] sorted by uid, then the utf-8 process names.
+    // An entry without name matches every process of its uid.
+    class ScopeTable {
+    public:
+        enum class Result {
+            kUnknown,
+            kScoped,
+            kUnscoped,
+        };
+
+        constexpr static auto kPath = "/data/adb/lspd/scope_table";
+        constexpr static uint32_t kMagic = 0x5450534c;
+        constexpr static uint32_t kVersion = 1;
+        constexpr static std::size_t kBootIdSize = 40;
+
+        struct Header {
+            uint32_t magic;
+            uint32_t version;
+            // odd while the daemon is writing or the table is invalid
+            uint32_t seq;
+            uint32_t count;
+            uint32_t size;
+            char boot_id[kBootIdSize];
+            uint32_t reserved;
+        };
+        static_assert(sizeof(Header) == 64);
+
+        struct Entry {
+            int32_t uid;
+            uint32_t name_offset;
+            uint32_t name_length;
+        };
+        static_assert(sizeof(Entry) == 12);
+
+        // Only kUnscoped is authoritative, anything else must be asked to the daemon.
+        static Result Lookup(int fd, int32_t uid, std::string_view process_name) {
+            struct stat st{};
+            if (fstat(fd, &st) != 0 || st.st_size < static_cast<off_t>(sizeof(Header))) {
+                return Result::kUnknown;
+            }
+            auto size = static_cast<std::size_t>(st.st_size);
+            auto *addr = mmap(nullptr, size, PROT_READ, MAP_SHARED, fd, 0);
+            if (addr == MAP_FAILED) return Result::kUnknown;
+            auto result = Find(static_cast<const std::byte *>(addr), size, uid, process_name);
+            munmap(addr, size);
+            return result;
+        }
+
+    private:
+        static Result Find(const std::byte *base, std::size_t mapped, int32_t uid,
+                           std::string_view process_name) {
+            const auto *header = reinterpret_cast<const Header *>(base);
+            auto seq = __atomic_load_n(&header->seq, __ATOMIC_ACQUIRE);
+            if (header->magic != kMagic || header->version != kVersion || (seq & 1) != 0) {
+                return Result::kUnknown;
+            }
+            std::size_t size = header->size;
+            std::size_t count = header->count;
+            if (size > mapped || size < sizeof(Header) ||
+                count > (size - sizeof(Header)) / sizeof(Entry)) {
+                return Result::kUnknown;
+            }
+            const auto *begin = reinterpret_cast<const Entry *>(base + sizeof(Header));
+            const auto *end = begin + count;
+            auto result = Result::kUnscoped;
+            for (auto *entry = std::lower_bound(begin, end, uid, [](const Entry &e, int32_t u) {
+                return e.uid < u;
+            }); entry != end && entry->uid == uid; ++entry) {
+                if (entry->name_length == 0) {
+                    result = Result::kScoped;
+                    break;
+                }
+                if (entry->name_offset > size || entry->name_length > size - entry->name_offset) {
+                    result = Result::kUnknown;
+                    break;
+                }
+                if (std::string_view(reinterpret_cast<const char *>(base + entry->name_offset),
+                                     entry->name_length) == process_name) {
+                    result = Result::kScoped;
+                    break;
+                }
+            }
+            // the daemon rewrote the table meanwhile
+            std::atomic_thread_fence(std::memory_order_acquire);
+            if (__atomic_load_n(&header->seq, __ATOMIC_RELAXED) != seq) return Result::kUnknown;
+            return result;
+        }
+    };
+}  // namespace lspd
@@ -321,30 +321,39 @@ namespace lspd {
             LOGE("Service::RequestLSPDex: transaction failed?");
             return {-1, 0};
         }
-        auto parcel_fd = JNI_CallObjectMethod(env, wrapper.reply, read_file_descriptor_method_);
+        return ReadLSPDex(env, wrapper.reply);
+    }
+
+    std::tuple<int, size_t> Service::ReadLSPDex(JNIEnv *env, const ScopedLocalRef<jobject> &reply) {
+        auto parcel_fd = JNI_CallObjectMethod(env, reply, read_file_descriptor_method_);
         int fd = JNI_CallIntMethod(env, parcel_fd, detach_fd_method_);
-        auto size = static_cast<size_t>(JNI_CallLongMethod(env, wrapper.reply, read_long_method_));
+        auto size = static_cast<size_t>(JNI_CallLongMethod(env, reply, read_long_method_));
         LOGD("fd={}, size={}", fd, size);
         return {fd, size};
     }
 
     std::map<std::string, std::string>
     Service::RequestObfuscationMap(JNIEnv *env, const ScopedLocalRef<jobject> &binder) {
-        std::map<std::string, std::string> ret;
         Wrapper wrapper{env, this};
         bool res = wrapper.transact(binder, OBFUSCATION_MAP_TRANSACTION_CODE);
 
         if (!res) {
             LOGE("Service::RequestObfuscationMap: transaction failed?");
-            return ret;
+            return {};
         }
-        auto size = JNI_CallIntMethod(env, wrapper.reply, read_int_method_);
+        return ReadObfuscationMap(env, wrapper.reply);
+    }
+
+    std::map<std::string, std::string>
+    Service::ReadObfuscationMap(JNIEnv *env, const ScopedLocalRef<jobject> &reply) {
+        std::map<std::string, std::string> ret;
+        auto size = JNI_CallIntMethod(env, reply, read_int_method_);
         if (!size || (size & 1) == 1) {
-            LOGW("Service::RequestObfuscationMap: invalid parcel size");
+            LOGW("Service::ReadObfuscationMap: invalid parcel size");
         }
 
-        auto get_string = [this, &wrapper, &env]() -> std::string {
-            auto s = JNI_Cast<jstring>(JNI_CallObjectMethod(env, wrapper.reply, read_string_method_));
+        auto get_string = [this, &reply, &env]() -> std::string {
+            auto s = JNI_Cast<jstring>(JNI_CallObjectMethod(env, reply, read_string_method_));
             return JUTFString(s);
         };
         for (auto i = 0; i < size / 2; i++) {
@@ -360,4 +369,22 @@ namespace lspd {
 
         return ret;
     }
+
+    ScopedLocalRef<jobject> Service::RequestBootstrap(JNIEnv *env, const ScopedLocalRef<jobject> &binder) {
+        auto data = JNI_CallStaticObjectMethod(env, parcel_class_, obtain_method_);
+        auto reply = JNI_CallStaticObjectMethod(env, parcel_class_, obtain_method_);
+        bool res = JNI_CallBooleanMethod(env, binder, transact_method_, BOOTSTRAP_TRANSACTION_CODE,
+                                         data, reply, 0);
+        RecycleParcel(env, data);
+        if (!res) {
+            LOGW("Service::RequestBootstrap: transaction failed, fall back to separate requests");
+            RecycleParcel(env, reply);
+            return {env, nullptr};
+        }
+        return reply;
+    }
+
+    void Service::RecycleParcel(JNIEnv *env, const ScopedLocalRef<jobject> &parcel) {
+        if (parcel) JNI_CallVoidMethod(env, parcel, recycleMethod_);
+    }
 }  // namespace lspd
@@ -34,6 +34,7 @@ namespace lspd {
     class Service {
         constexpr static jint DEX_TRANSACTION_CODE = 1310096052;
         constexpr static jint OBFUSCATION_MAP_TRANSACTION_CODE = 724533732;
+        constexpr static jint BOOTSTRAP_TRANSACTION_CODE = 1112494924;
         constexpr static jint BRIDGE_TRANSACTION_CODE = 1598837584;
         constexpr static auto BRIDGE_SERVICE_DESCRIPTOR = "FunXP"sv;
         constexpr static auto BRIDGE_SERVICE_NAME = "activity"sv;
@@ -88,6 +89,16 @@ namespace lspd {
 
         std::map<std::string, std::string> RequestObfuscationMap(JNIEnv *env, const lsplant::ScopedLocalRef<jobject> &binder);
 
+        // Dex, obfuscation map and the java bootstrap in one transaction.
+        // Returns the reply parcel or null if unsupported, recycle it with RecycleParcel.
+        lsplant::ScopedLocalRef<jobject> RequestBootstrap(JNIEnv *env, const lsplant::ScopedLocalRef<jobject> &binder);
+
+        std::tuple<int, size_t> ReadLSPDex(JNIEnv *env, const lsplant::ScopedLocalRef<jobject> &reply);
+
+        std::map<std::string, std::string> ReadObfuscationMap(JNIEnv *env, const lsplant::ScopedLocalRef<jobject> &reply);
+
+        void RecycleParcel(JNIEnv *env, const lsplant::ScopedLocalRef<jobject> &parcel);
+
     private:
         inline static std::unique_ptr<Service> instance_ = std::make_unique<Service>();
         bool initialized_ = false;
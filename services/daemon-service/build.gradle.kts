@@ -34,6 +34,7 @@ android {
 
     aidlPackagedList += "com/posed/lspd/models/Module.aidl"
     aidlPackagedList += "com/posed/lspd/models/PreloadedApk.aidl"
+    aidlPackagedList += "com/posed/lspd/models/PreLoadedDex.aidl"
     namespace = "com.posed.lspd.daemonservice"
 }
 
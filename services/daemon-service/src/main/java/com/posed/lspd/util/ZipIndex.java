@@ -0,0 +1,251 @@
+package com.posed.lspd.util;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Read-only view of a zip file that is memory-mapped once and indexed by entry name.
+ * <p>
+ * The file descriptor is closed right after mapping; the mapping itself is released together
+ * with this object, so an index can be shared freely by everyone holding a reference to it.
+ */
+public final class ZipIndex {
+    private static final int EOCD_SIG = 0x06054b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int CEN_SIG = 0x02014b50;
+    private static final int CEN_SIZE = 46;
+    private static final int LOC_SIG = 0x04034b50;
+    private static final int LOC_SIZE = 30;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+
+    public static final class Entry {
+        public final String name;
+        public final int method;
+        public final long compressedSize;
+        public final long size;
+        private final int localHeaderOffset;
+        private volatile int dataOffset = -1;
+
+        private Entry(String name, int method, long compressedSize, long size, int localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+    }
+
+    private final String path;
+    private final ByteBuffer buffer;
+    private final Map<String, Entry> entries;
+
+    private ZipIndex(String path, ByteBuffer buffer, Map<String, Entry> entries) {
+        this.path = path;
+        this.buffer = buffer;
+        this.entries = entries;
+    }
+
+    public static ZipIndex open(String path) throws IOException {
+        ByteBuffer buffer;
+        try (var file = new RandomAccessFile(path, "r"); var channel = file.getChannel()) {
+            var length = channel.size();
+            if (length > Integer.MAX_VALUE) {
+                throw new ZipException("Zip file too large: " + path);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return new ZipIndex(path, buffer, readCentralDirectory(path, buffer));
+    }
+
+    private static Map<String, Entry> readCentralDirectory(String path, ByteBuffer buffer) throws ZipException {
+        var length = buffer.limit();
+        var eocd = -1;
+        for (int i = length - EOCD_SIZE, stop = Math.max(0, i - MAX_COMMENT_SIZE); i >= stop; i--) {
+            if (buffer.getInt(i) == EOCD_SIG) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            throw new ZipException("End of central directory not found: " + path);
+        }
+        var total = buffer.getShort(eocd + 10) & 0xffff;
+        var cenSize = buffer.getInt(eocd + 12) & 0xffffffffL;
+        var cenOffset = buffer.getInt(eocd + 16) & 0xffffffffL;
+        if (cenOffset + cenSize > eocd) {
+            throw new ZipException("Invalid central directory (zip64 is not supported): " + path);
+        }
+        var entries = new HashMap<String, Entry>(total * 4 / 3 + 1);
+        var offset = (int) cenOffset;
+        for (int i = 0; i < total; i++) {
+            if (offset + CEN_SIZE > eocd || buffer.getInt(offset) != CEN_SIG) {
+                throw new ZipException("Invalid central directory entry " + i + ": " + path);
+            }
+            var method = buffer.getShort(offset + 10) & 0xffff;
+            var compressedSize = buffer.getInt(offset + 20) & 0xffffffffL;
+            var size = buffer.getInt(offset + 24) & 0xffffffffL;
+            var nameLength = buffer.getShort(offset + 28) & 0xffff;
+            var extraLength = buffer.getShort(offset + 30) & 0xffff;
+            var commentLength = buffer.getShort(offset + 32) & 0xffff;
+            var localHeaderOffset = buffer.getInt(offset + 42);
+            var nameBytes = new byte[nameLength];
+            buffer.position(offset + CEN_SIZE);
+            buffer.get(nameBytes);
+            var name = new String(nameBytes, StandardCharsets.UTF_8);
+            // keep the first one like ZipFile does
+            entries.putIfAbsent(name, new Entry(name, method, compressedSize, size, localHeaderOffset));
+            offset += CEN_SIZE + nameLength + extraLength + commentLength;
+        }
+        buffer.position(0);
+        return entries;
+    }
+
+    public String getName() {
+        return path;
+    }
+
+    public Entry getEntry(String name) {
+        return entries.get(name);
+    }
+
+    public List<Entry> getEntries(String prefix) {
+        var result = new ArrayList<Entry>();
+        for (var entry : entries.values()) {
+            if (entry.name.startsWith(prefix)) {
+                result.add(entry);
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Returns the offset of the entry's (possibly compressed) data within the zip file.
+     */
+    public long getDataOffset(Entry entry) throws ZipException {
+        var dataOffset = entry.dataOffset;
+        if (dataOffset < 0) {
+            var loc = entry.localHeaderOffset;
+            if (loc < 0 || loc + LOC_SIZE > buffer.limit() || buffer.getInt(loc) != LOC_SIG) {
+                throw new ZipException("Invalid local header for " + entry.name + ": " + path);
+            }
+            dataOffset = loc + LOC_SIZE + (buffer.getShort(loc + 26) & 0xffff) + (buffer.getShort(loc + 28) & 0xffff);
+            entry.dataOffset = dataOffset;
+        }
+        if (dataOffset + entry.compressedSize > buffer.limit()) {
+            throw new ZipException("Truncated entry " + entry.name + ": " + path);
+        }
+        return dataOffset;
+    }
+
+    /**
+     * Returns the raw (possibly compressed) data of the entry without copying it.
+     */
+    public ByteBuffer getRawData(Entry entry) throws ZipException {
+        var dataOffset = (int) getDataOffset(entry);
+        var data = buffer.duplicate();
+        data.position(dataOffset);
+        data.limit((int) (dataOffset + entry.compressedSize));
+        return data.slice();
+    }
+
+    public InputStream getInputStream(Entry entry) throws IOException {
+        var data = new ByteBufferInputStream(getRawData(entry));
+        switch (entry.method) {
+            case ZipEntry.STORED:
+                return data;
+            case ZipEntry.DEFLATED:
+                var inflater = new Inflater(true);
+                return new InflaterInputStream(data, inflater, (int) Math.max(1, Math.min(entry.size, 8192))) {
+                    private boolean closed = false;
+                    private boolean eof = false;
+
+                    @Override
+                    protected void fill() throws IOException {
+                        if (eof) {
+                            throw new EOFException("Unexpected end of ZLIB input stream");
+                        }
+                        len = in.read(buf, 0, buf.length);
+                        if (len == -1) {
+                            // the inflater may need a dummy byte to finish a raw deflate stream
+                            buf[0] = 0;
+                            len = 1;
+                            eof = true;
+                        }
+                        inf.setInput(buf, 0, len);
+                    }
+
+                    @Override
+                    public int available() throws IOException {
+                        if (closed) return 0;
+                        return inflater.finished() ? 0 : (int) Math.max(0, entry.size - inflater.getBytesWritten());
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        if (closed) return;
+                        closed = true;
+                        inflater.end();
+                        super.close();
+                    }
+                };
+            default:
+                throw new ZipException("Unsupported compression method " + entry.method + " for " + entry.name);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ZipIndex[" + new File(path).getName() + ", entries=" + entries.size() + "]";
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (!buffer.hasRemaining()) return -1;
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public long skip(long n) {
+            var skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}